@@ -0,0 +1,478 @@
+package bench;
+
+import org.example.MasterEngine;
+import shared.FileTransfer;
+import shared.LatencyHistogram;
+import slave.SlaveEngine;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Reproducible end-to-end load on one machine: a master and a cluster of
+ * slaves in this process, connected over loopback, run one job on a seeded
+ * synthetic dataset of BMP images.
+ *
+ * By default the slaves are simulated. Each speaks the real protocol with
+ * {@code --slots} workers and spends {@code --task-ms} (plus or minus half)
+ * on each image. A task fails with probability {@code --failure-rate}, and
+ * each direction of a slave's link is throttled to {@code --bandwidth-mbps}.
+ * With {@code --demo} the slaves are real SlaveEngines running demo.py
+ * instead, and the synthetic timing, failures and throttling do not apply.
+ *
+ * Every run reports:
+ * - images completed per second, from submission until the job is done
+ * - the master's p50/p99 task latency, sent to result
+ * - the heap high-water mark, sampled every HEAP_SAMPLE_MILLIS; simulated
+ *   slaves keep nothing on the heap, so this is the master's
+ *
+ * Medians over {@code --runs} are taken. {@code --report} writes them as a
+ * properties file. {@code --baseline} compares them to such a file and exits
+ * with status 1 when throughput fell, or p99 latency or the heap grew, by more
+ * than {@code --tolerance} percent. Run with a fixed -Xmx for comparable heap
+ * figures.
+ *
+ * Usage: ClusterLoadTest [--slaves n] [--images m] [--image-kb k] [--slots s] [--task-ms d]
+ *                        [--failure-rate p] [--bandwidth-mbps b] [--transport blocking|selector]
+ *                        [--batch n|auto] [--demo [--script demo.py] [--persistent]] [--runs r]
+ *                        [--seed s] [--report file] [--baseline file] [--tolerance percent]
+ */
+public class ClusterLoadTest {
+    private static final int HEARTBEAT_MILLIS = 3000;
+    private static final int PREFETCH = 2;
+    private static final long HEAP_SAMPLE_MILLIS = 10;
+    private static final long JOB_TIMEOUT_MINUTES = 30;
+
+    /**
+     * Command line settings, with the defaults used when an option is left out.
+     */
+    private static class Config {
+        int slaves = 8;
+        int images = 2000;
+        int imageKb = 64;
+        int slots = 2;
+        long taskMillis = 20;
+        double failureRate = 0;
+        double bandwidthMbps = 0;
+        MasterEngine.Transport transport = MasterEngine.Transport.BLOCKING;
+        String batch = "auto";
+        boolean demo = false;
+        File script = new File("demo.py");
+        boolean persistent = false;
+        int runs = 3;
+        long seed = 42;
+        File report;
+        File baseline;
+        double tolerance = 10;
+
+        @Override
+        public String toString() {
+            String slaveKind = demo
+                    ? "demo slaves running " + script.getName() + (persistent ? " (persistent)" : "")
+                    : String.format("simulated slaves, %d ms per task, failure rate %.3f, %s", taskMillis,
+                    failureRate, bandwidthMbps > 0 ? bandwidthMbps + " Mbit/s links" : "unthrottled links");
+            return String.format("%d slaves x %d slots, %d images of %d KB, batch %s, %s transport, %s, seed %d",
+                    slaves, slots, images, imageKb, batch, transport.name().toLowerCase(), slaveKind, seed);
+        }
+    }
+
+    private record Result(double imagesPerSecond, double p50Millis, double p99Millis, long heapPeakBytes,
+                          int completed, int failed) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--slaves" -> config.slaves = Integer.parseInt(args[++i]);
+                case "--images" -> config.images = Integer.parseInt(args[++i]);
+                case "--image-kb" -> config.imageKb = Integer.parseInt(args[++i]);
+                case "--slots" -> config.slots = Integer.parseInt(args[++i]);
+                case "--task-ms" -> config.taskMillis = Long.parseLong(args[++i]);
+                case "--failure-rate" -> config.failureRate = Double.parseDouble(args[++i]);
+                case "--bandwidth-mbps" -> config.bandwidthMbps = Double.parseDouble(args[++i]);
+                case "--transport" -> config.transport = MasterEngine.Transport.valueOf(args[++i].toUpperCase());
+                case "--batch" -> config.batch = args[++i];
+                case "--demo" -> config.demo = true;
+                case "--script" -> config.script = new File(args[++i]);
+                case "--persistent" -> config.persistent = true;
+                case "--runs" -> config.runs = Integer.parseInt(args[++i]);
+                case "--seed" -> config.seed = Long.parseLong(args[++i]);
+                case "--report" -> config.report = new File(args[++i]);
+                case "--baseline" -> config.baseline = new File(args[++i]);
+                case "--tolerance" -> config.tolerance = Double.parseDouble(args[++i]);
+                default -> {
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+        int batchSize = MasterEngine.parseBatchSize(config.batch);
+
+        File workDir = Files.createTempDirectory("cluster-load").toFile();
+        File script = config.demo ? config.script : new File(workDir, "noop.py");
+        if (!config.demo) {
+            Files.writeString(script.toPath(), "pass\n");
+        }
+        System.out.println(config);
+        List<File> images = dataset(new File(workDir, "images"), config);
+        // A processed image is about the size of its input
+        File result = images.get(0);
+
+        List<Result> results = new ArrayList<>();
+        for (int run = 1; run <= config.runs; run++) {
+            Result r = run(config, run, script, images, batchSize, result, workDir);
+            results.add(r);
+            System.out.printf("Run %d: %.1f images/s, latency p50 %.1f ms p99 %.1f ms, heap peak %.1f MB, "
+                            + "%d completed, %d failed%n", run, r.imagesPerSecond(), r.p50Millis(), r.p99Millis(),
+                    r.heapPeakBytes() / 1048576.0, r.completed(), r.failed());
+        }
+
+        Properties summary = new Properties();
+        summary.setProperty("images_per_second", String.format(Locale.ROOT, "%.2f",
+                median(results, Result::imagesPerSecond)));
+        summary.setProperty("latency_p50_ms", String.format(Locale.ROOT, "%.2f", median(results, Result::p50Millis)));
+        summary.setProperty("latency_p99_ms", String.format(Locale.ROOT, "%.2f", median(results, Result::p99Millis)));
+        summary.setProperty("heap_peak_mb", String.format(Locale.ROOT, "%.2f",
+                median(results, r -> r.heapPeakBytes() / 1048576.0)));
+        System.out.printf("Median of %d run(s): %s images/s, latency p50 %s ms p99 %s ms, heap peak %s MB%n",
+                results.size(), summary.getProperty("images_per_second"), summary.getProperty("latency_p50_ms"),
+                summary.getProperty("latency_p99_ms"), summary.getProperty("heap_peak_mb"));
+
+        if (config.report != null) {
+            try (Writer out = new FileWriter(config.report)) {
+                summary.store(out, config.toString());
+            }
+        }
+        boolean regressed = config.baseline != null && compare(summary, config.baseline, config.tolerance);
+
+        SlaveLoadTest.deleteRecursively(workDir);
+        System.exit(regressed ? 1 : 0);
+    }
+
+    private static Result run(Config config, int run, File script, List<File> images, int batchSize, File result,
+                              File workDir) throws Exception {
+        File resultDir = new File(workDir, "results-" + run);
+        CountDownLatch jobDone = new CountDownLatch(1);
+        MasterEngine master = new MasterEngine(resultDir, new File(workDir, "run" + run + ".db"),
+                new MasterEngine.Listener() {
+                    @Override
+                    public void log(String message) {
+                        // Per-task messages would drown the report
+                    }
+
+                    @Override
+                    public void jobCompleted(String jobId) {
+                        jobDone.countDown();
+                    }
+                });
+        master.setTransport(config.transport);
+        master.start(0);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), master.getPort());
+
+        List<SlaveEngine> demoSlaves = new ArrayList<>();
+        try (ExecutorService slaves = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < config.slaves; i++) {
+                if (config.demo) {
+                    File slaveDir = new File(workDir, "run" + run + "-slave" + i);
+                    slaveDir.mkdirs();
+                    SlaveEngine slave = new SlaveEngine(slaveDir, message -> {
+                    });
+                    slave.setPersistentWorkers(config.persistent);
+                    slave.connect(address.getHostString(), address.getPort(), config.slots, 256L << 20);
+                    demoSlaves.add(slave);
+                } else {
+                    long seed = config.seed * 31 + i;
+                    slaves.execute(() -> runSlave(address, config, new Random(seed), result));
+                }
+            }
+            while (master.getSlaveCount() < config.slaves) {
+                Thread.sleep(20);
+            }
+
+            HeapSampler heap = new HeapSampler();
+            long start = System.nanoTime();
+            String jobId = master.submitJob(script, images, batchSize);
+            boolean finished = jobDone.await(JOB_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long heapPeak = heap.stop();
+            if (!finished) {
+                System.out.println("Run " + run + " timed out");
+            }
+
+            LatencyHistogram.Snapshot latency = master.metrics().histogram("task.round_trip").snapshot();
+            // Each stored result has a directory of its own, named by its task
+            String[] outputs = new File(resultDir, jobId).list((dir, name) -> !name.startsWith("."));
+            int completed = outputs == null ? 0 : outputs.length;
+
+            master.stop();
+            master.close();
+            for (SlaveEngine slave : demoSlaves) {
+                slave.disconnect();
+            }
+            return new Result(completed / seconds, latency.p50Millis(), latency.p99Millis(), heapPeak,
+                    completed, images.size() - completed);
+        }
+    }
+
+    /**
+     * Seeded noise images, so every run of a configuration sees the same bytes.
+     */
+    private static List<File> dataset(File dir, Config config) throws IOException {
+        dir.mkdirs();
+        int side = Math.max(1, (int) Math.sqrt(config.imageKb * 1024 / 3.0));
+        Random random = new Random(config.seed);
+        List<File> images = new ArrayList<>();
+        BufferedImage image = new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        for (int i = 0; i < config.images; i++) {
+            for (int y = 0; y < side; y++) {
+                for (int x = 0; x < side; x++) {
+                    image.setRGB(x, y, random.nextInt(0x1000000));
+                }
+            }
+            File file = new File(dir, "img" + i + ".bmp");
+            ImageIO.write(image, "bmp", file);
+            images.add(file);
+        }
+        return images;
+    }
+
+    /**
+     * One simulated slave: receives tasks at the throttled rate, works on up
+     * to {@code --slots} of them at a time and answers each with the result
+     * file or a failure, until the master shuts it down.
+     */
+    private static void runSlave(InetSocketAddress address, Config config, Random random, File result) {
+        Throttle down = Throttle.of(config.bandwidthMbps);
+        Throttle up = Throttle.of(config.bandwidthMbps);
+        BlockingQueue<Long> queue = new LinkedBlockingQueue<>();
+        Set<Long> cancelled = ConcurrentHashMap.newKeySet();
+        try (Socket socket = SocketChannel.open(address).socket()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            in.readUTF();
+            synchronized (out) {
+                out.writeUTF("INVENTORY");
+                out.writeInt(0);
+                out.writeUTF("SLOTS");
+                out.writeInt(config.slots);
+                out.writeUTF("READY");
+                out.writeInt(config.slots + PREFETCH);
+                out.flush();
+            }
+
+            List<Thread> threads = new ArrayList<>();
+            threads.add(Thread.startVirtualThread(() -> heartbeat(out)));
+            for (int i = 0; i < config.slots; i++) {
+                threads.add(Thread.startVirtualThread(
+                        () -> work(out, queue, cancelled, config, random, up, result)));
+            }
+            try {
+                while (true) {
+                    String command = in.readUTF();
+                    if ("SCRIPT".equals(command)) {
+                        in.readUTF();
+                        readContent(in, down);
+                    } else if ("BATCH".equals(command)) {
+                        in.readUTF();
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            long taskId = in.readLong();
+                            readContent(in, down);
+                            queue.add(taskId);
+                        }
+                    } else if ("IMAGE".equals(command)) {
+                        in.readUTF();
+                        long taskId = in.readLong();
+                        readContent(in, down);
+                        queue.add(taskId);
+                    } else if ("CANCEL".equals(command)) {
+                        cancelled.add(in.readLong());
+                    } else if ("END".equals(command)) {
+                        in.readUTF();
+                    } else if ("COMPRESSION".equals(command)) {
+                        in.readInt();
+                    } else if ("SHUTDOWN".equals(command)) {
+                        return;
+                    }
+                }
+            } finally {
+                for (Thread thread : threads) thread.interrupt();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection closed
+        }
+    }
+
+    private static void heartbeat(DataOutputStream out) {
+        try {
+            while (true) {
+                Thread.sleep(HEARTBEAT_MILLIS);
+                synchronized (out) {
+                    out.writeUTF("HEARTBEAT");
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection closed
+        }
+    }
+
+    private static void work(DataOutputStream out, BlockingQueue<Long> queue, Set<Long> cancelled, Config config,
+                             Random random, Throttle up, File result) {
+        try {
+            while (true) {
+                long taskId = queue.take();
+                boolean skip = cancelled.remove(taskId);
+                if (!skip && config.taskMillis > 0) {
+                    Thread.sleep((long) (config.taskMillis * (0.5 + random.nextDouble())));
+                }
+                boolean fail = skip || random.nextDouble() < config.failureRate;
+                synchronized (out) {
+                    if (fail) {
+                        out.writeUTF("FAILED");
+                        out.writeLong(taskId);
+                        out.writeUTF(skip ? "ERROR: Cancelled" : "ERROR: Synthetic failure");
+                    } else {
+                        up.pass(result.length());
+                        out.writeUTF("RESULT");
+                        out.writeLong(taskId);
+                        FileTransfer.sendFile(out, result, "bw_task" + taskId + ".bmp");
+                    }
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection closed
+        }
+    }
+
+    /**
+     * Reads one content entry at the link's rate without storing it.
+     */
+    private static void readContent(DataInputStream in, Throttle down) throws IOException, InterruptedException {
+        if (!in.readBoolean()) {
+            in.readUTF();
+            in.readUTF();
+            return;
+        }
+        in.readUTF();
+        in.readUTF();
+        in.readLong();
+        in.readByte();
+        int frame;
+        while ((frame = in.readInt()) > 0) {
+            in.skipNBytes(frame);
+            down.pass(frame);
+        }
+        in.readLong();
+    }
+
+    /**
+     * Paces one direction of a simulated link: each caller sleeps until the
+     * bytes moved so far fit the rate. Passes everything at once when the
+     * link is unthrottled.
+     */
+    private static final class Throttle {
+        private final double nanosPerByte;
+        private long next = System.nanoTime();
+
+        private Throttle(double nanosPerByte) {
+            this.nanosPerByte = nanosPerByte;
+        }
+
+        static Throttle of(double mbps) {
+            return new Throttle(mbps > 0 ? 8e3 / mbps : 0);
+        }
+
+        void pass(long bytes) throws InterruptedException {
+            if (nanosPerByte == 0) return;
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                next = Math.max(next, now) + (long) (bytes * nanosPerByte);
+                wait = next - now;
+            }
+            if (wait > 0) Thread.sleep(Duration.ofNanos(wait));
+        }
+    }
+
+    /**
+     * Tracks the highest heap use seen from its creation until stop().
+     */
+    private static final class HeapSampler {
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final AtomicLong peak = new AtomicLong();
+        private final Thread thread;
+
+        HeapSampler() {
+            System.gc();
+            thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                        Thread.sleep(HEAP_SAMPLE_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                }
+            }, "heap-sampler");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long stop() throws InterruptedException {
+            thread.interrupt();
+            thread.join();
+            return peak.get();
+        }
+    }
+
+    private static double median(List<Result> results, ToDoubleFunction<Result> metric) {
+        double[] values = results.stream().mapToDouble(metric).sorted().toArray();
+        int middle = values.length / 2;
+        return values.length % 2 == 1 ? values[middle] : (values[middle - 1] + values[middle]) / 2;
+    }
+
+    /**
+     * Prints each metric against the baseline and returns true if any of
+     * them regressed by more than the tolerance.
+     */
+    private static boolean compare(Properties current, File baselineFile, double tolerance) throws IOException {
+        Properties baseline = new Properties();
+        try (Reader in = new FileReader(baselineFile)) {
+            baseline.load(in);
+        }
+        boolean regressed = false;
+        // Throughput regresses by falling, the others by growing
+        Map<String, Boolean> higherIsBetter = new LinkedHashMap<>();
+        higherIsBetter.put("images_per_second", true);
+        higherIsBetter.put("latency_p99_ms", false);
+        higherIsBetter.put("heap_peak_mb", false);
+        for (Map.Entry<String, Boolean> metric : higherIsBetter.entrySet()) {
+            String before = baseline.getProperty(metric.getKey());
+            if (before == null) continue;
+            double was = Double.parseDouble(before);
+            double now = Double.parseDouble(current.getProperty(metric.getKey()));
+            double change = was == 0 ? 0 : (now - was) * 100 / was;
+            boolean worse = metric.getValue() ? change < -tolerance : change > tolerance;
+            regressed |= worse;
+            System.out.printf("%-18s baseline %10.2f  now %10.2f  %+6.1f%%%s%n", metric.getKey(), was, now, change,
+                    worse ? "  REGRESSION" : "");
+        }
+        return regressed;
+    }
+}
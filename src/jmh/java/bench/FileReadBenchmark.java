@@ -0,0 +1,120 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import shared.FileTransfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Ways of reading an input image, each finished by the CRC32 every transfer
+ * computes anyway: the whole-file array the original readFileBytes built, the
+ * chunked stream FileTransfer uses, channel reads into heap and direct
+ * buffers, and a memory mapping. The file stays in the page cache, so this
+ * measures copies and allocation rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileReadBenchmark {
+    @Param({"65536", "4194304", "67108864"})
+    public int size;
+
+    private File file;
+    private final byte[] chunk = new byte[FileTransfer.CHUNK_SIZE];
+    private final ByteBuffer heapBuffer = ByteBuffer.allocate(FileTransfer.CHUNK_SIZE);
+    private final ByteBuffer directBuffer = ByteBuffer.allocateDirect(FileTransfer.CHUNK_SIZE);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("read-bench", ".bin").toFile();
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        Files.write(file.toPath(), content);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long readFileBytes() throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = fis.read(content, offset, content.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public long readAllBytes() throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file.toPath()));
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public long streamChunks() throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int read;
+            while ((read = fis.read(chunk)) > 0) {
+                crc.update(chunk, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public long channelHeapBuffer() throws IOException {
+        return readChannel(heapBuffer);
+    }
+
+    @Benchmark
+    public long channelDirectBuffer() throws IOException {
+        return readChannel(directBuffer);
+    }
+
+    @Benchmark
+    public long mapped() throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            crc.update(mapping);
+        }
+        return crc.getValue();
+    }
+
+    private long readChannel(ByteBuffer buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,114 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import shared.FilePacket;
+import shared.FileTransfer;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Cost of putting one file on the wire and taking it off again: the original
+ * Java serialization of a {@link FilePacket} against the FileTransfer framing,
+ * raw and Deflate-compressed. Writers go to memory and readers come from it,
+ * so the network is left out; FileTransfer readers still write the received
+ * file, as they do in the engines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+    @Param({"65536", "4194304"})
+    public int size;
+
+    private File workDir;
+    private File source;
+    private File received;
+    private byte[] serialized;
+    private byte[] framed;
+    private byte[] deflated;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, ClassNotFoundException {
+        workDir = Files.createTempDirectory("framing-bench").toFile();
+        received = new File(workDir, "received");
+        received.mkdir();
+        source = new File(workDir, "image.bmp");
+        // Half random, half constant, so compression has something to do
+        byte[] content = new byte[size];
+        new Random(42).nextBytes(content);
+        for (int i = size / 2; i < size; i++) content[i] = 0;
+        Files.write(source.toPath(), content);
+
+        serialized = serialize();
+        framed = frame(0);
+        deflated = frame(Deflater.BEST_SPEED);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File dir : new File[] {received, workDir}) {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Benchmark
+    public byte[] serializeFilePacket() throws IOException {
+        return serialize();
+    }
+
+    @Benchmark
+    public byte[] frameRaw() throws IOException {
+        return frame(0);
+    }
+
+    @Benchmark
+    public byte[] frameDeflated() throws IOException {
+        return frame(Deflater.BEST_SPEED);
+    }
+
+    @Benchmark
+    public Object deserializeFilePacket() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            FilePacket packet = (FilePacket) in.readObject();
+            Files.write(new File(received, packet.getFileName()).toPath(), packet.getData());
+            return packet;
+        }
+    }
+
+    @Benchmark
+    public File unframeRaw() throws IOException {
+        return FileTransfer.receiveFile(new DataInputStream(new ByteArrayInputStream(framed)), received);
+    }
+
+    @Benchmark
+    public File unframeDeflated() throws IOException {
+        return FileTransfer.receiveFile(new DataInputStream(new ByteArrayInputStream(deflated)), received);
+    }
+
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 1024);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(new FilePacket(source.getName(), Files.readAllBytes(source.toPath())));
+        }
+        return bytes.toByteArray();
+    }
+
+    private byte[] frame(int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(size + 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        FileTransfer.sendFile(out, source, source.getName(), level);
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,219 @@
+package bench;
+
+import org.example.MasterEngine;
+import shared.FileTransfer;
+import shared.SlaveMetrics;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the same job on a cluster of simulated slaves of mixed speeds, once
+ * with even and once with weighted scheduling, and compares the makespans.
+ * Each simulated slave speaks the real protocol, works through its images one
+ * at a time taking BASE_MILLIS / speed for each, and reports metrics like a
+ * real slave. A warm-up job first gives the master speeds to weigh by.
+ *
+ * Usage: SchedulingSimulation [images] [speeds, comma separated] [baseMillis]
+ */
+public class SchedulingSimulation {
+    private static final long METRICS_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int imageCount = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        String[] speedList = (args.length > 1 ? args[1] : "1,1,1,1,2,2,4,8").split(",");
+        long baseMillis = args.length > 2 ? Long.parseLong(args[2]) : 40;
+        double[] speeds = new double[speedList.length];
+        double totalSpeed = 0;
+        for (int i = 0; i < speeds.length; i++) {
+            speeds[i] = Double.parseDouble(speedList[i]);
+            totalSpeed += speeds[i];
+        }
+
+        File workDir = Files.createTempDirectory("scheduling-sim").toFile();
+        File script = new File(workDir, "noop.py");
+        Files.writeString(script.toPath(), "pass\n");
+        File result = new File(workDir, "result.png");
+        Files.writeString(result.toPath(), "result");
+
+        System.out.printf("%d images on %d slaves, speeds %s, %d ms per image at speed 1%n",
+                imageCount, speeds.length, String.join(",", speedList), baseMillis);
+        System.out.printf("Ideal makespan: %.0f ms%n", imageCount * baseMillis / totalSpeed);
+        for (boolean weighted : new boolean[] {false, true}) {
+            long makespan = run(weighted, speeds, baseMillis, imageCount, script, result, workDir);
+            System.out.printf("%-8s scheduling: makespan %d ms%n", weighted ? "weighted" : "even", makespan);
+        }
+
+        SlaveLoadTest.deleteRecursively(workDir);
+        System.exit(0);
+    }
+
+    private static long run(boolean weighted, double[] speeds, long baseMillis, int imageCount, File script,
+                            File result, File workDir) throws Exception {
+        String mode = weighted ? "weighted" : "even";
+        File inputDir = new File(workDir, "images-" + mode);
+        inputDir.mkdir();
+        List<File> warmUp = images(inputDir, "warm", imageCount / 4);
+        List<File> images = images(inputDir, "img", imageCount);
+
+        BlockingQueue<String> completed = new LinkedBlockingQueue<>();
+        MasterEngine master = new MasterEngine(new File(workDir, "results-" + mode), new File(workDir, mode + ".db"),
+                new MasterEngine.Listener() {
+                    @Override
+                    public void log(String message) {
+                    }
+
+                    @Override
+                    public void jobCompleted(String jobId) {
+                        completed.add(jobId);
+                    }
+                });
+        master.setWeightedScheduling(weighted);
+        master.start(0);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), master.getPort());
+        try (ExecutorService slaves = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (double speed : speeds) {
+                slaves.execute(() -> runSlave(address, result, (long) (baseMillis / speed)));
+            }
+            while (master.getSlaveCount() < speeds.length) {
+                Thread.sleep(20);
+            }
+
+            master.submitJob(script, warmUp, 1);
+            completed.take();
+            // Let every slave report the speed it just showed
+            Thread.sleep(2 * METRICS_MILLIS);
+
+            long start = System.nanoTime();
+            master.submitJob(script, images, 1);
+            completed.take();
+            long makespan = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            master.stop();
+            master.close();
+            return makespan;
+        }
+    }
+
+    private static List<File> images(File dir, String prefix, int count) throws IOException {
+        List<File> images = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            File image = new File(dir, prefix + i + ".png");
+            Files.writeString(image.toPath(), prefix + i);
+            images.add(image);
+        }
+        return images;
+    }
+
+    /**
+     * One simulated slave with a single slot and a fixed time per image.
+     */
+    private static void runSlave(InetSocketAddress address, File result, long millisPerImage) {
+        try (Socket socket = SocketChannel.open(address).socket()) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            in.readUTF();
+            synchronized (out) {
+                out.writeUTF("INVENTORY");
+                out.writeInt(0);
+                out.writeUTF("SLOTS");
+                out.writeInt(1);
+                out.writeUTF("READY");
+                out.writeInt(3);
+                out.flush();
+            }
+
+            // Task ids in arrival order, and those the master no longer needs
+            BlockingQueue<Long> queue = new LinkedBlockingQueue<>();
+            Set<Long> cancelled = ConcurrentHashMap.newKeySet();
+            AtomicLong answered = new AtomicLong();
+            Thread worker = Thread.startVirtualThread(() -> work(out, queue, cancelled, answered, result, millisPerImage));
+            Thread metrics = Thread.startVirtualThread(() -> reportMetrics(out, queue, answered, millisPerImage));
+            try {
+                while (true) {
+                    String command = in.readUTF();
+                    if ("SCRIPT".equals(command)) {
+                        in.readUTF();
+                        SlaveLoadTest.skipContent(in);
+                    } else if ("BATCH".equals(command)) {
+                        in.readUTF();
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            queue.add(in.readLong());
+                            SlaveLoadTest.skipContent(in);
+                        }
+                    } else if ("CANCEL".equals(command)) {
+                        cancelled.add(in.readLong());
+                    } else if ("END".equals(command)) {
+                        in.readUTF();
+                    } else if ("SHUTDOWN".equals(command)) {
+                        return;
+                    }
+                }
+            } finally {
+                worker.interrupt();
+                metrics.interrupt();
+            }
+        } catch (IOException e) {
+            // Master closed the connection
+        }
+    }
+
+    private static void work(DataOutputStream out, BlockingQueue<Long> queue, Set<Long> cancelled,
+                             AtomicLong answered, File result, long millisPerImage) {
+        try {
+            while (true) {
+                long taskId = queue.take();
+                if (!cancelled.remove(taskId)) {
+                    Thread.sleep(millisPerImage);
+                }
+                synchronized (out) {
+                    out.writeUTF("RESULT");
+                    out.writeLong(taskId);
+                    FileTransfer.sendFile(out, result, "bw_" + taskId + ".png");
+                    out.flush();
+                }
+                answered.incrementAndGet();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection closed
+        }
+    }
+
+    private static void reportMetrics(DataOutputStream out, BlockingQueue<Long> queue, AtomicLong answered,
+                                      long millisPerImage) {
+        double throughput = 0;
+        long lastAnswered = 0;
+        long lastReport = System.nanoTime();
+        try {
+            while (true) {
+                Thread.sleep(METRICS_MILLIS);
+                long now = System.nanoTime();
+                long done = answered.get();
+                if (done > lastAnswered || !queue.isEmpty()) {
+                    double rate = (done - lastAnswered) / ((now - lastReport) / 1e9);
+                    throughput = throughput > 0 ? 0.5 * throughput + 0.5 * rate : rate;
+                }
+                lastAnswered = done;
+                lastReport = now;
+                synchronized (out) {
+                    out.writeUTF("METRICS");
+                    new SlaveMetrics(queue.isEmpty() ? 1 : 0, queue.size(), 0.5, Long.MAX_VALUE, throughput,
+                            millisPerImage).write(out);
+                    out.flush();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection closed
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package bench;
+
+import org.example.MasterEngine;
+import shared.FileTransfer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects thousands of simulated slaves to an in-process master and runs one
+ * job across all of them. Each simulated slave speaks the real protocol on its
+ * own virtual thread but answers every image with a small canned result
+ * instead of running Python, so the test measures the master alone. With
+ * transport "both" the same load runs against the blocking and then the
+ * selector transport.
+ *
+ * Needs roughly two file descriptors per slave (ulimit -n).
+ *
+ * Usage: SlaveLoadTest [slaves] [imagesPerSlave] [blocking|selector|both] [imageKb]
+ */
+public class SlaveLoadTest {
+    private static final int HEARTBEAT_MILLIS = 3000;
+    // Handshakes in progress at once; an unbounded storm overflows the kernel's
+    // accept queue and strands connections the master never sees
+    private static final int CONNECT_CONCURRENCY = 256;
+
+    public static void main(String[] args) throws Exception {
+        int slaveCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int imagesPerSlave = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        String mode = args.length > 2 ? args[2] : "both";
+        int imageKb = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        File workDir = Files.createTempDirectory("slave-load").toFile();
+        File script = new File(workDir, "noop.py");
+        Files.writeString(script.toPath(), "pass\n");
+        File imageDir = new File(workDir, "images");
+        imageDir.mkdir();
+        List<File> images = new ArrayList<>();
+        byte[] content = new byte[imageKb * 1024];
+        for (int i = 0; i < slaveCount * imagesPerSlave; i++) {
+            File image = new File(imageDir, "img" + i + ".png");
+            // Distinct content so no image is a cache reference to another
+            byte[] id = Integer.toString(i).getBytes();
+            System.arraycopy(id, 0, content, 0, Math.min(id.length, content.length));
+            Files.write(image.toPath(), content);
+            images.add(image);
+        }
+        File result = new File(workDir, "result.png");
+        Files.writeString(result.toPath(), "result");
+
+        for (MasterEngine.Transport transport : MasterEngine.Transport.values()) {
+            if (mode.equals("both") || mode.equalsIgnoreCase(transport.name())) {
+                run(transport, slaveCount, script, images, result, workDir);
+            }
+        }
+
+        deleteRecursively(workDir);
+        System.exit(0);
+    }
+
+    private static void run(MasterEngine.Transport transport, int slaveCount, File script, List<File> images,
+                            File result, File workDir) throws Exception {
+        File resultDir = new File(workDir, "results-" + transport.name().toLowerCase());
+        CountDownLatch jobDone = new CountDownLatch(1);
+        MasterEngine master = new MasterEngine(resultDir, new File(workDir, transport.name().toLowerCase() + ".db"),
+                new MasterEngine.Listener() {
+                    @Override
+                    public void log(String message) {
+                        // Per-slave messages would drown the report
+                    }
+
+                    @Override
+                    public void jobCompleted(String jobId) {
+                        jobDone.countDown();
+                    }
+                });
+        master.setTransport(transport);
+        master.start(0);
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        System.out.println("== " + transport.name().toLowerCase() + " transport, " + slaveCount + " slaves");
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), master.getPort());
+
+        AtomicInteger processed = new AtomicInteger();
+        AtomicInteger failedSlaves = new AtomicInteger();
+        Semaphore connecting = new Semaphore(CONNECT_CONCURRENCY);
+        long connectStart = System.nanoTime();
+        try (ExecutorService slaves = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < slaveCount; i++) {
+                slaves.execute(() -> {
+                    try {
+                        runSlave(address, connecting, result, processed);
+                    } catch (IOException e) {
+                        failedSlaves.incrementAndGet();
+                    }
+                });
+            }
+
+            while (master.getSlaveCount() + failedSlaves.get() < slaveCount) {
+                Thread.sleep(50);
+            }
+            double connectSeconds = (System.nanoTime() - connectStart) / 1e9;
+            System.out.printf("Slaves connected: %d of %d in %.2f s%n",
+                    master.getSlaveCount(), slaveCount, connectSeconds);
+
+            long jobStart = System.nanoTime();
+            master.submitJob(script, images, 1);
+            boolean finished = jobDone.await(10, TimeUnit.MINUTES);
+            double jobSeconds = (System.nanoTime() - jobStart) / 1e9;
+            System.out.printf("Job %s: %d images in %.2f s (%.0f images/s)%n",
+                    finished ? "finished" : "timed out", processed.get(), jobSeconds, processed.get() / jobSeconds);
+            System.out.printf("Peak platform threads: %d%n",
+                    ManagementFactory.getThreadMXBean().getPeakThreadCount());
+
+            master.stop();
+            master.close();
+        }
+    }
+
+    /**
+     * One simulated slave: handshake, heartbeats, then a result for every
+     * image until the master shuts it down.
+     */
+    private static void runSlave(InetSocketAddress address, Semaphore connecting, File result,
+                                 AtomicInteger processed) throws IOException {
+        connecting.acquireUninterruptibly();
+        Socket socket;
+        DataOutputStream out;
+        DataInputStream in;
+        try {
+            socket = SocketChannel.open(address).socket();
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            in.readUTF();
+        } finally {
+            connecting.release();
+        }
+
+        try (socket) {
+            synchronized (out) {
+                out.writeUTF("INVENTORY");
+                out.writeInt(0);
+                out.writeUTF("SLOTS");
+                out.writeInt(1);
+                out.writeUTF("READY");
+                out.writeInt(1);
+                out.flush();
+            }
+
+            Thread heartbeat = Thread.startVirtualThread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(HEARTBEAT_MILLIS);
+                        synchronized (out) {
+                            out.writeUTF("HEARTBEAT");
+                            out.flush();
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // Connection closed
+                }
+            });
+
+            try {
+                while (true) {
+                    String command = in.readUTF();
+                    if ("SCRIPT".equals(command)) {
+                        in.readUTF();
+                        skipContent(in);
+                    } else if ("BATCH".equals(command)) {
+                        in.readUTF();
+                        int count = in.readInt();
+                        long[] taskIds = new long[count];
+                        List<String> names = new ArrayList<>();
+                        for (int i = 0; i < count; i++) {
+                            taskIds[i] = in.readLong();
+                            names.add(skipContent(in));
+                        }
+                        // Counted first so the total is complete once the master sees the last result
+                        processed.addAndGet(count);
+                        synchronized (out) {
+                            for (int i = 0; i < count; i++) {
+                                out.writeUTF("RESULT");
+                                out.writeLong(taskIds[i]);
+                                FileTransfer.sendFile(out, result, "bw_" + names.get(i));
+                            }
+                            out.flush();
+                        }
+                    } else if ("CANCEL".equals(command)) {
+                        // Already answered; every image gets a result at once
+                        in.readLong();
+                    } else if ("END".equals(command)) {
+                        in.readUTF();
+                    } else if ("SHUTDOWN".equals(command)) {
+                        return;
+                    }
+                }
+            } catch (EOFException e) {
+                // Master closed the connection
+            } finally {
+                heartbeat.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reads one content entry without storing it and returns its file name.
+     */
+    static String skipContent(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            String name = in.readUTF();
+            in.readUTF();
+            return name;
+        }
+        in.readUTF();
+        String name = in.readUTF();
+        in.readLong();
+        in.readByte();
+        int frame;
+        while ((frame = in.readInt()) > 0) {
+            in.skipNBytes(frame);
+        }
+        in.readLong();
+        return name;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+}
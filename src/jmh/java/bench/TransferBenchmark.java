@@ -0,0 +1,90 @@
+package bench;
+
+import shared.FileTransfer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Compares the buffered and zero-copy transfer paths over loopback.
+ *
+ * Usage: TransferBenchmark [fileSizeMb] [transfers]
+ */
+public class TransferBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int transfers = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        File workDir = Files.createTempDirectory("transfer-bench").toFile();
+        File source = new File(workDir, "payload.bin");
+        writeRandomFile(source, sizeMb * 1024L * 1024L);
+        File sinkDir = new File(workDir, "received");
+        sinkDir.mkdir();
+
+        // Warm up both paths before measuring
+        run(source, sinkDir, 3, false);
+        run(source, sinkDir, 3, true);
+
+        double stream = run(source, sinkDir, transfers, false);
+        double zeroCopy = run(source, sinkDir, transfers, true);
+        System.out.printf("File size: %d MB, transfers: %d%n", sizeMb, transfers);
+        System.out.printf("Stream:    %8.1f MB/s%n", stream);
+        System.out.printf("Zero-copy: %8.1f MB/s%n", zeroCopy);
+
+        for (File f : sinkDir.listFiles()) f.delete();
+        sinkDir.delete();
+        source.delete();
+        workDir.delete();
+    }
+
+    private static double run(File source, File sinkDir, int transfers, boolean zeroCopy) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            Thread receiver = new Thread(() -> {
+                try (Socket socket = server.socket().accept()) {
+                    DataInputStream in = new FileTransfer.SocketInput(socket, FileTransfer.CHUNK_SIZE);
+                    for (int i = 0; i < transfers; i++) {
+                        FileTransfer.receiveFile(in, sinkDir, zeroCopy);
+                    }
+                    socket.getOutputStream().write(1);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            receiver.start();
+
+            try (Socket socket = SocketChannel.open(server.getLocalAddress()).socket()) {
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream(), FileTransfer.CHUNK_SIZE));
+                long start = System.nanoTime();
+                for (int i = 0; i < transfers; i++) {
+                    FileTransfer.sendFile(out, zeroCopy ? socket.getChannel() : null, source);
+                }
+                out.flush();
+                socket.getInputStream().read();
+                long elapsed = System.nanoTime() - start;
+                receiver.join();
+                return (source.length() * (double) transfers / (1024 * 1024)) / (elapsed / 1e9);
+            }
+        }
+    }
+
+    private static void writeRandomFile(File file, long size) throws IOException {
+        Random random = new Random(42);
+        byte[] buffer = new byte[FileTransfer.CHUNK_SIZE];
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += buffer.length) {
+                random.nextBytes(buffer);
+                fos.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Database writes of one job of {@code tasks} images against a temporary
+ * SQLite file: inserting its task rows, and recording every task as
+ * completed either in one transaction, as the writer thread does, or in a
+ * transaction per task, as the master did before writes were batched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseBenchmark {
+    @Param({"100", "1000"})
+    public int tasks;
+
+    private File workDir;
+    private MasterEngine engine;
+    private MasterEngine.DatabaseHandler database;
+    private final List<String> imageNames = new ArrayList<>();
+    private final List<MasterEngine.PendingWrite> updates = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException, ClassNotFoundException {
+        workDir = Files.createTempDirectory("database-bench").toFile();
+        engine = new MasterEngine(new File(workDir, "out"), new File(workDir, "master.db"), message -> {
+        });
+        database = engine.new DatabaseHandler(new File(workDir, "bench.db"));
+        for (int i = 0; i < tasks; i++) {
+            imageNames.add("image" + i + ".bmp");
+        }
+
+        String jobId = database.createJob(tasks, MasterEngine.Priority.NORMAL);
+        List<Long> taskIds = database.createTasks(jobId, imageNames);
+        for (int i = 0; i < taskIds.size(); i++) {
+            updates.add(new MasterEngine.TaskUpdate(jobId, taskIds.get(i), "COMPLETED",
+                    jobId + File.separator + "bw_" + imageNames.get(i)));
+            updates.add(new MasterEngine.JobCounters(jobId, i + 1, 0));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        database.close();
+        engine.close();
+        try (var files = Files.walk(workDir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            // Left in the temporary directory
+        }
+    }
+
+    @Benchmark
+    public List<Long> insertTasks() throws SQLException {
+        String jobId = database.createJob(tasks, MasterEngine.Priority.NORMAL);
+        return database.createTasks(jobId, imageNames);
+    }
+
+    @Benchmark
+    public void updateBatched() {
+        database.commit(updates);
+    }
+
+    @Benchmark
+    public void updatePerTask() {
+        for (int i = 0; i < updates.size(); i += 2) {
+            database.commit(updates.subList(i, i + 2));
+        }
+    }
+}
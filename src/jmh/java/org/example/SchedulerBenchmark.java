@@ -0,0 +1,173 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.IntFunction;
+
+/**
+ * Time for as many dispatcher threads as there are slaves to drain one job of
+ * TASKS tasks, taking and finishing one task at a time: the work-stealing
+ * {@link MasterEngine.TaskDistributor}, round robin and weighted, against a
+ * single shared queue, lock-free and locked. Slaves are in-memory handlers
+ * that never write anything, so only the scheduler's own contention counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulerBenchmark {
+    private static final int TASKS = 20_000;
+
+    @Param({"4", "16"})
+    public int slaves;
+
+    private File workDir;
+    private MasterEngine engine;
+    private final List<MasterEngine.SlaveHandler> handlers = new ArrayList<>();
+    private final List<MasterEngine.Task> tasks = new ArrayList<>();
+    private ExecutorService dispatchers;
+
+    // Filled again before every invocation
+    private MasterEngine.TaskDistributor roundRobin;
+    private MasterEngine.TaskDistributor weighted;
+    private final Queue<MasterEngine.Task> lockFree = new ConcurrentLinkedQueue<>();
+    private final Queue<MasterEngine.Task> locked = new LinkedBlockingQueue<>();
+    private final Set<Long> finished = ConcurrentHashMap.newKeySet();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException, ClassNotFoundException {
+        workDir = Files.createTempDirectory("scheduler-bench").toFile();
+        engine = new MasterEngine(new File(workDir, "out"), new File(workDir, "bench.db"), message -> {
+        });
+        for (int i = 0; i < slaves; i++) {
+            handlers.add(engine.new SlaveHandler(new Socket(), new NullLink()));
+        }
+        File image = new File(workDir, "image.bmp");
+        for (int i = 0; i < TASKS; i++) {
+            tasks.add(new MasterEngine.Task(i + 1, image));
+        }
+        dispatchers = Executors.newFixedThreadPool(slaves);
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        engine.setWeightedScheduling(false);
+        roundRobin = newJob();
+        engine.setWeightedScheduling(true);
+        weighted = newJob();
+        lockFree.clear();
+        lockFree.addAll(tasks);
+        locked.clear();
+        locked.addAll(tasks);
+        finished.clear();
+    }
+
+    private MasterEngine.TaskDistributor newJob() {
+        MasterEngine.TaskDistributor job = engine.new TaskDistributor("bench", "script", null, 1, TASKS,
+                MasterEngine.Priority.NORMAL);
+        job.deal(handlers, tasks);
+        return job;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        dispatchers.shutdownNow();
+        engine.close();
+        try (var files = Files.walk(workDir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            // Left in the temporary directory
+        }
+    }
+
+    @Benchmark
+    public int workStealing() throws Exception {
+        return drain(slave -> () -> drainJob(roundRobin, handlers.get(slave)));
+    }
+
+    @Benchmark
+    public int weightedWorkStealing() throws Exception {
+        return drain(slave -> () -> drainJob(weighted, handlers.get(slave)));
+    }
+
+    @Benchmark
+    public int sharedLockFreeQueue() throws Exception {
+        return drain(slave -> () -> drainQueue(lockFree));
+    }
+
+    @Benchmark
+    public int sharedLockedQueue() throws Exception {
+        return drain(slave -> () -> drainQueue(locked));
+    }
+
+    private int drainJob(MasterEngine.TaskDistributor job, MasterEngine.SlaveHandler slave) {
+        int taken = 0;
+        MasterEngine.Task task;
+        while ((task = job.nextTask(slave)) != null) {
+            job.finish(task.id(), slave);
+            taken++;
+        }
+        return taken;
+    }
+
+    private int drainQueue(Queue<MasterEngine.Task> queue) {
+        int taken = 0;
+        MasterEngine.Task task;
+        while ((task = queue.poll()) != null) {
+            finished.add(task.id());
+            taken++;
+        }
+        return taken;
+    }
+
+    /**
+     * Runs one dispatcher per slave and returns how many tasks they took.
+     */
+    private int drain(IntFunction<Callable<Integer>> dispatcher) throws Exception {
+        List<Callable<Integer>> calls = new ArrayList<>();
+        for (int i = 0; i < slaves; i++) {
+            calls.add(dispatcher.apply(i));
+        }
+        int taken = 0;
+        for (Future<Integer> result : dispatchers.invokeAll(calls)) {
+            taken += result.get();
+        }
+        return taken;
+    }
+
+    /**
+     * A slave connection that accepts and drops everything.
+     */
+    private static class NullLink implements MasterEngine.SlaveLink {
+        private final DataOutputStream out = new DataOutputStream(OutputStream.nullOutputStream());
+
+        @Override
+        public DataOutputStream output() {
+            return out;
+        }
+
+        @Override
+        public void sendFile(File file, int level) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
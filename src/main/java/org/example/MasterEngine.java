@@ -0,0 +1,2308 @@
+package org.example;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.UUID;
+import java.util.*;
+import java.util.List;
+import java.util.Timer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import shared.ContentHash;
+import shared.EventLog;
+import shared.FileTransfer;
+import shared.LatencyHistogram;
+import shared.Metrics;
+import shared.SlaveMetrics;
+
+/**
+ * Headless master: accepts slaves, schedules jobs onto them and keeps the job
+ * database. MasterGUI and MasterNode drive it through its public methods and
+ * observe it through a {@link Listener}.
+ */
+public class MasterEngine {
+    // Batching limits: a batch never carries more than this many bytes or images
+    private static final long BATCH_BYTE_BUDGET = 16L * 1024 * 1024;
+    public static final int MAX_BATCH = 256;
+    // How long a dispatcher waits for more credits to fill a batch
+    private static final long BATCH_LINGER_MILLIS = 20;
+    // Adaptive batches hold roughly this much work for the receiving slave
+    private static final long ADAPTIVE_BATCH_MILLIS = 250;
+    // Pending connections the OS queues while the accept loop catches up
+    private static final int ACCEPT_BACKLOG = 1024;
+    // Pause before accepting again after the server socket reported an error
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+    // Per-slave socket buffers; file chunks are larger and bypass them, so these
+    // only batch the small control messages and keep thousands of slaves cheap
+    private static final int SOCKET_BUFFER = 8 * 1024;
+    // Times an image is sent before it is recorded as failed
+    private static final int MAX_ATTEMPTS = 3;
+    // A slave silent for this long is dropped and its tasks go to the others
+    private static final long HEARTBEAT_TIMEOUT_MILLIS = 30000;
+    // Near the end of a job, a task running longer than the job's p95 duration
+    // times this factor gets a second copy on an idle slave
+    private static final double SPECULATION_FACTOR = 1.5;
+    // Completed tasks a job needs before its p95 is trusted, and the shortest
+    // run worth duplicating
+    private static final int SPECULATION_MIN_SAMPLES = 10;
+    private static final long SPECULATION_MIN_MILLIS = 1000;
+    // How often a job looks for stragglers, however many slaves are idle
+    private static final long SPECULATION_INTERVAL_MILLIS = 100;
+    // A slave reporting less free disk or more load per core than this gets no
+    // new work until its metrics recover
+    private static final long MIN_FREE_DISK_BYTES = 512L * 1024 * 1024;
+    private static final double SATURATED_CPU_LOAD = 2.0;
+    private static final long SATURATED_BACKOFF_MILLIS = 1000;
+
+    private final Listener listener;
+    private ServerSocket serverSocket;
+    // Slave connections and their side tasks each get a virtual thread
+    private ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private ConcurrentHashMap<String, SlaveHandler> slaves = new ConcurrentHashMap<>();
+    // Files sent by content hash, so a slave that lost a cached copy can be sent it again
+    private final Map<String, File> contentByHash = new ConcurrentHashMap<>();
+    // Jobs with images not yet completed or failed, by job ID
+    private final Map<String, TaskDistributor> activeJobs = new ConcurrentHashMap<>();
+    private final AtomicLong jobSequence = new AtomicLong();
+    // Signalled when a job gains work for the slaves' idle dispatchers
+    private final ReentrantLock workLock = new ReentrantLock();
+    private final Condition workChanged = workLock.newCondition();
+    private Timer slaveMonitor;
+    private final File outputDir;
+    private volatile boolean serverRunning = false;
+    private volatile boolean zeroCopy = false;
+    private volatile Transport transport = Transport.BLOCKING;
+    private volatile boolean weightedScheduling = true;
+    // Nanosecond time of the jobs' leases and straggler checks
+    private volatile LongSupplier clock = System::nanoTime;
+    // Set while every connected slave is saturated; each then still gets a batch
+    // whenever it has none running
+    private final AtomicBoolean allSaturated = new AtomicBoolean(false);
+    // Deflate level offered to slaves for content in both directions, 0 for none
+    private volatile int compressionLevel = 0;
+    // I/O threads of the selector transport while it is in use
+    private SelectorTransport selectorTransport;
+    // Counters, gauges and stage latencies of the dispatch and result paths;
+    // per-slave and per-job metrics are named slave.<id>.* and job.<id>.*
+    private final Metrics metrics = new Metrics();
+    private final LatencyHistogram queueWait = metrics.histogram("task.queue_wait");
+    private final LatencyHistogram sendTime = metrics.histogram("transfer.send");
+    private final LatencyHistogram roundTrip = metrics.histogram("task.round_trip");
+    private final LatencyHistogram receiveTime = metrics.histogram("result.receive");
+    private final LatencyHistogram saveTime = metrics.histogram("result.save");
+
+    private DatabaseHandler dbHandler;
+
+    /**
+     * How slave connections are served: a virtual thread per slave doing
+     * blocking reads and writes, or a few selector threads multiplexing all
+     * slaves with non-blocking I/O.
+     */
+    public enum Transport {
+        BLOCKING, SELECTOR
+    }
+
+    /**
+     * Share of the slaves a job gets while other jobs run: every slave hands
+     * its next task to the job that has received the fewest tasks relative to
+     * its weight.
+     */
+    public enum Priority {
+        LOW(1), NORMAL(4), HIGH(16);
+
+        private final int weight;
+
+        Priority(int weight) {
+            this.weight = weight;
+        }
+
+        public int weight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Receives everything the engine reports. Callbacks arrive on engine
+     * threads; GUIs hand them to the EDT themselves.
+     */
+    public interface Listener {
+        void log(String message);
+
+        /**
+         * Receives every message with its level; listeners that only want
+         * the text need not override it.
+         */
+        default void log(EventLog.Level level, String message) {
+            log(message);
+        }
+
+        default void jobCompleted(String jobId) {
+        }
+    }
+
+    public MasterEngine(File outputDir, Listener listener) throws SQLException, ClassNotFoundException {
+        this(outputDir, new File("master.db"), listener);
+    }
+
+    public MasterEngine(File outputDir, File database, Listener listener) throws SQLException, ClassNotFoundException {
+        this.outputDir = outputDir;
+        this.listener = listener;
+        dbHandler = new DatabaseHandler(database);
+        outputDir.mkdir();
+        // Left behind by transfers a crash cut short
+        deleteRecursively(incomingDir());
+        metrics.gauge("slaves", slaves::size);
+        metrics.gauge("jobs.active", activeJobs::size);
+        metrics.gauge("db.pending_writes", dbHandler::pendingWrites);
+        metrics.gauge("bytes.out.wire", () -> FileTransfer.stats().wireBytes());
+        metrics.gauge("bytes.out.content", () -> FileTransfer.stats().contentBytes());
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Binds the server port and starts accepting slaves in the background.
+     * Bind failures are thrown to the caller.
+     */
+    public synchronized void start(int port) throws IOException {
+        // Bound through a channel so accepted sockets expose a SocketChannel for zero-copy sends
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        serverSocket = serverChannel.socket();
+        if (executor.isShutdown()) {
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+        }
+        if (transport == Transport.SELECTOR) {
+            selectorTransport = new SelectorTransport(this::log);
+        }
+        serverRunning = true;
+        startSlaveMonitor();
+        log("Master server started on port " + port + " (" + transport.name().toLowerCase() + " transport)");
+
+        Thread.ofVirtual().name("master-accept").start(this::acceptSlaves);
+    }
+
+    private void acceptSlaves() {
+        SelectorTransport selector = selectorTransport;
+        while (serverRunning) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                if (!serverRunning || serverSocket.isClosed()) return;
+                // Such as running out of file descriptors; connections already
+                // accepted carry on, and new ones are taken once it clears
+                warn("Server error: " + ex.getMessage());
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            SlaveHandler handler = null;
+            try {
+                handler = selector != null ? openSelected(socket, selector) : new SlaveHandler(socket);
+                admit(handler, selector == null);
+            } catch (IOException | RuntimeException ex) {
+                warn("Failed to set up connection from " + socket.getRemoteSocketAddress() + ": " + ex.getMessage());
+                if (handler != null) handler.connectionLost();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Nothing more to release
+                }
+            }
+        }
+    }
+
+    private SlaveHandler openSelected(Socket socket, SelectorTransport selector) throws IOException {
+        SelectorTransport.Connection connection = selector.open(socket.getChannel());
+        SlaveHandler handler = new SlaveHandler(socket, connection);
+        connection.start(handler);
+        return handler;
+    }
+
+    /**
+     * Greets a new slave and starts serving it. It is counted as connected
+     * only once it has been sent its ID, so a connection that fails before
+     * that never shows up in the slave count or in the saturation check.
+     */
+    void admit(SlaveHandler handler, boolean blocking) throws IOException {
+        handler.greet();
+        slaves.put(handler.getSlaveId(), handler);
+        if (handler.isLost()) {
+            // Dropped while being greeted, before it was registered
+            slaves.remove(handler.getSlaveId());
+            return;
+        }
+        if (blocking) {
+            executor.execute(handler);
+        }
+        log("New slave connected: " + handler.getSlaveId());
+        updateSaturation();
+        executor.execute(() -> serve(handler));
+    }
+
+    public synchronized void stop() throws IOException {
+        serverRunning = false;
+        if (slaveMonitor != null) {
+            slaveMonitor.cancel();
+            slaveMonitor = null;
+        }
+        // Running jobs stay PROCESSING in the database; nothing is retried once stopped
+        for (TaskDistributor job : activeJobs.values()) {
+            job.cancel();
+        }
+        activeJobs.clear();
+        // Send shutdown signal to slaves
+        for (SlaveHandler slave : slaves.values()) {
+            slave.writeLock.lock();
+            try {
+                slave.out.writeUTF("SHUTDOWN");
+                slave.out.flush();
+            } catch (IOException ex) {
+                // Already disconnected
+            } finally {
+                slave.writeLock.unlock();
+            }
+        }
+
+        // Close server socket
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            serverSocket.close();
+        }
+
+        // Disconnect all slaves
+        for (SlaveHandler slave : slaves.values()) {
+            slave.disconnect();
+        }
+        slaves.clear();
+        if (selectorTransport != null) {
+            selectorTransport.close();
+            selectorTransport = null;
+        }
+
+        // Shutdown executor
+        executor.shutdownNow();
+        log("Server stopped. All slaves disconnected.");
+    }
+
+    public boolean isRunning() {
+        return serverRunning;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getSlaveCount() {
+        return slaves.size();
+    }
+
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Deals and steals work in proportion to each slave's measured speed
+     * rather than evenly. Applies to jobs submitted afterwards.
+     */
+    public void setWeightedScheduling(boolean weightedScheduling) {
+        this.weightedScheduling = weightedScheduling;
+    }
+
+    /**
+     * Replaces the time source of jobs submitted afterwards, so tests can
+     * make tasks overdue without waiting.
+     */
+    void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Offers Deflate compression at this level to slaves that connect from now
+     * on; 0 turns it off. Each transfer still goes raw when its content would
+     * not shrink.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Selects the transport used from the next {@link #start}.
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Creates a job for the images, serves what it can from the result cache
+     * and starts dispatching the rest to the connected slaves. Returns the job
+     * ID, or null when no slave is connected.
+     */
+    public String submitJob(File script, List<File> images, int batchSize) throws SQLException, IOException {
+        return submitJob(script, images, batchSize, Priority.NORMAL);
+    }
+
+    /**
+     * Starts a job next to any already running. Slaves are shared between
+     * running jobs in proportion to their priorities' weights.
+     */
+    public String submitJob(File script, List<File> images, int batchSize, Priority priority)
+            throws SQLException, IOException {
+        List<SlaveHandler> participants = new ArrayList<>(slaves.values());
+        if (participants.isEmpty()) {
+            warn("No slaves available for task distribution");
+            return null;
+        }
+
+        String jobId = dbHandler.createJob(images.size(), priority);
+        File jobDir = new File(outputDir, jobId);
+        jobDir.mkdir();
+
+        // Create tasks in DB; their row ids identify them on the wire
+        List<String> imageNames = new ArrayList<>();
+        for (File image : images) {
+            imageNames.add(image.getName());
+        }
+        List<Long> taskIds = dbHandler.createTasks(jobId, imageNames);
+
+        // Satisfy tasks already computed for this script and input from the result cache
+        String scriptHash = ContentHash.of(script);
+        List<Task> pending = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            Task task = new Task(taskIds.get(i), images.get(i));
+            String output = dbHandler.findCachedResult(scriptHash, ContentHash.of(task.image()));
+            // Named the way the slave names a fresh result of this input
+            File copied = output == null ? null : copyCachedResult(new File(outputDir, output),
+                    resultFile(jobId, task.id(), "bw_" + task.image().getName()));
+            if (copied != null) {
+                dbHandler.updateTask(jobId, task.id(), "COMPLETED", relativeOutput(copied));
+            } else {
+                pending.add(task);
+            }
+        }
+        int hits = images.size() - pending.size();
+        dbHandler.setCacheHits(jobId, hits);
+        log(String.format("Job %s: %d/%d images served from the result cache (%.1f%%)",
+                jobId, hits, images.size(), images.isEmpty() ? 0.0 : hits * 100.0 / images.size()));
+        if (pending.isEmpty()) {
+            return jobId;
+        }
+
+        // Registered before the slaves are listed, so one connecting meanwhile joins through joinActiveJobs
+        TaskDistributor distributor = new TaskDistributor(jobId, scriptHash, script, batchSize, pending.size(),
+                priority);
+        activeJobs.put(jobId, distributor);
+        distributor.trackMetrics();
+        List<SlaveHandler> dealt = new ArrayList<>(slaves.values());
+        distributor.deal(dealt, pending);
+
+        // Send script to all slaves first
+        for (SlaveHandler slave : dealt) {
+            try {
+                slave.sendScript(jobId, script);
+                debug("Sent script to " + slave.getSlaveId());
+            } catch (IOException e) {
+                warn("Failed to send script to " + slave.getSlaveId() + ": " + e.getMessage());
+                slave.connectionLost();
+            }
+        }
+
+        // The slaves' dispatchers pull from the job as their credits and its
+        // share allow; the job thread ends once every image is done
+        FileTransfer.Stats sentBefore = FileTransfer.stats();
+        Thread.ofVirtual().name("job-" + jobId).start(() -> {
+            for (SlaveHandler slave : dealt) {
+                distributor.addSlave(slave);
+            }
+            distributor.run();
+            for (SlaveHandler slave : slaves.values()) {
+                slave.endJob(jobId);
+            }
+            metrics.remove("job." + jobId + ".");
+            log("Job " + jobId + ": dispatch finished");
+            // Includes anything other jobs sent meanwhile
+            log("Job " + jobId + " transfers: " + FileTransfer.stats().minus(sentBefore));
+        });
+        return jobId;
+    }
+
+    /**
+     * Copies a cached result to {@code target} as the result of another task,
+     * through a part file renamed into place. A copy rather than a link, so
+     * editing one job's output never changes another's or the cache. Returns
+     * null when the cached file is gone.
+     */
+    private File copyCachedResult(File cached, File target) {
+        if (!cached.exists()) {
+            return null;
+        }
+        try {
+            target.getParentFile().mkdirs();
+            Path part = Files.createTempFile(target.getParentFile().toPath(), "." + target.getName() + ".", ".part");
+            try {
+                Files.copy(cached.toPath(), part, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(part, target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(part);
+            }
+            return target;
+        } catch (IOException e) {
+            warn("Could not reuse cached result " + cached + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Where results are received before they are accepted: a directory per
+     * slave below the output directory, so accepting one is a rename.
+     */
+    private File incomingDir() {
+        return new File(outputDir, ".incoming");
+    }
+
+    /**
+     * Where the result of a task is kept: a directory of its own inside the
+     * job's, so inputs of the same name from different directories never
+     * share a result file.
+     */
+    private File resultFile(String jobId, long taskId, String name) {
+        return new File(new File(new File(outputDir, jobId), Long.toString(taskId)), name);
+    }
+
+    /**
+     * Moves an accepted result from where it was received into its task's
+     * directory and records it. A result that cannot be moved fails its task.
+     */
+    private void storeResult(PendingTask task, File received) {
+        long taskId = task.task().id();
+        File target = resultFile(task.jobId(), taskId, received.getName());
+        try {
+            target.getParentFile().mkdirs();
+            Files.move(received.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            warn("Could not store result of " + task.task().image().getName() + ": " + e.getMessage());
+            dbHandler.updateTask(task.jobId(), taskId, "FAILED", "Could not store result: " + e.getMessage());
+            return;
+        }
+        debug("Received processed file: " + target.getName());
+        String output = relativeOutput(target);
+        dbHandler.cacheResult(task.scriptHash(), task.inputHash(), output);
+        dbHandler.updateTask(task.jobId(), taskId, "COMPLETED", output);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    /**
+     * Path of a result as stored in the database, relative to the output
+     * directory so the tree can be moved as a whole.
+     */
+    private String relativeOutput(File result) {
+        return outputDir.toPath().relativize(result.toPath()).toString();
+    }
+
+    /**
+     * Changes the share of a job, running or not, and records it.
+     */
+    public void setPriority(String jobId, Priority priority) throws SQLException {
+        TaskDistributor job = activeJobs.get(jobId);
+        if (job != null) {
+            job.priority = priority;
+        }
+        dbHandler.setPriority(jobId, priority);
+        log("Job " + jobId + " priority set to " + priority.name().toLowerCase());
+    }
+
+    public List<JobSummary> loadJobHistory(JobSummary after, int limit) throws SQLException {
+        return dbHandler.loadJobHistory(after, limit);
+    }
+
+    public void close() throws SQLException {
+        dbHandler.close();
+    }
+
+    /**
+     * Returns the configured batch size, or 0 for adaptive batching.
+     */
+    public static int parseBatchSize(String text) {
+        if ("auto".equalsIgnoreCase(text.trim())) {
+            return 0;
+        }
+        int size = Integer.parseInt(text.trim());
+        if (size < 1 || size > MAX_BATCH) {
+            throw new NumberFormatException("Batch size out of range");
+        }
+        return size;
+    }
+
+    /**
+     * Notes when every connected slave has become saturated, or the first of
+     * them has recovered, after a slave's state changed or it left.
+     */
+    private void updateSaturation() {
+        boolean all = !slaves.isEmpty() && slaves.values().stream().allMatch(SlaveHandler::isSaturated);
+        if (allSaturated.compareAndSet(!all, all)) {
+            if (all) {
+                warn("All slaves saturated; each gets one batch at a time until one recovers");
+            } else if (!slaves.isEmpty()) {
+                log("Slaves no longer all saturated");
+            }
+            signalWork();
+        }
+    }
+
+    /**
+     * Runs for as long as the slave is connected: joins the running jobs,
+     * then feeds the slave from all of them.
+     */
+    private void serve(SlaveHandler slave) {
+        joinActiveJobs(slave);
+        dispatch(slave);
+    }
+
+    /**
+     * The only thread writing tasks to a slave. Each credit goes to the job
+     * furthest behind its fair share that has work for the slave, which then
+     * fills the batch.
+     */
+    private void dispatch(SlaveHandler slave) {
+        try {
+            while (slave.acquireCredit()) {
+                if (weightedScheduling && slave.isSaturated()
+                        && !(allSaturated.get() && slave.inFlightCount() == 0)) {
+                    // Its backlogs are left for the others to steal meanwhile
+                    slave.releaseCredit();
+                    if (allSaturated.get()) {
+                        // Woken as soon as its batch is done
+                        awaitWork();
+                    } else {
+                        Thread.sleep(SATURATED_BACKOFF_MILLIS);
+                    }
+                    continue;
+                }
+                // A slow link parks only its own dispatcher until its queue drains
+                slave.awaitWritable();
+
+                TaskDistributor job = null;
+                Task first = null;
+                for (TaskDistributor candidate : jobsByShare()) {
+                    if (!candidate.isParticipant(slave)) continue;
+                    first = candidate.nextTask(slave);
+                    if (first != null) {
+                        job = candidate;
+                        break;
+                    }
+                }
+                if (job == null) {
+                    // Everything is out; wait for a new job or a task coming back
+                    slave.releaseCredit();
+                    awaitWork();
+                    continue;
+                }
+
+                int wanted = job.batchSize > 0 ? job.batchSize : slave.adaptiveBatchSize();
+                int granted = 1 + slave.acquireMoreCredits(wanted - 1, BATCH_LINGER_MILLIS);
+                List<Task> batch = new ArrayList<>();
+                batch.add(first);
+                long bytes = first.image().length();
+                while (batch.size() < granted && bytes < BATCH_BYTE_BUDGET) {
+                    Task task = job.nextTask(slave);
+                    if (task == null) break;
+                    batch.add(task);
+                    bytes += task.image().length();
+                }
+                slave.releaseCredits(granted - batch.size());
+                job.charge(batch.size());
+
+                long sendStart = System.nanoTime();
+                try {
+                    slave.sendBatch(batch, job.jobId, job.scriptHash);
+                    sendTime.recordSince(sendStart);
+                    metrics.add("tasks.sent", batch.size());
+                } catch (IOException e) {
+                    warn("Distribution to " + slave.getSlaveId() + " failed: " + e.getMessage());
+                    slave.connectionLost();
+                }
+                if (slave.isLost()) {
+                    // Leased after connectionLost requeued the slave's tasks
+                    slave.reclaim(batch);
+                    return;
+                }
+                debug("Distributed " + batch.size() + " image(s) of job " + job.jobId + " to " + slave.getSlaveId());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Running jobs, the one furthest behind its fair share first.
+     */
+    private List<TaskDistributor> jobsByShare() {
+        List<TaskDistributor> jobs = new ArrayList<>(activeJobs.values());
+        jobs.sort(Comparator.comparingDouble(TaskDistributor::pass).thenComparingLong(job -> job.sequence));
+        return jobs;
+    }
+
+    /**
+     * Lowest pass of the running jobs, where a newly submitted job starts so
+     * it neither waits for nor overtakes the others' history.
+     */
+    private double currentPass() {
+        double pass = Double.MAX_VALUE;
+        for (TaskDistributor job : activeJobs.values()) {
+            pass = Math.min(pass, job.pass());
+        }
+        return pass == Double.MAX_VALUE ? 0 : pass;
+    }
+
+    /**
+     * Waits briefly for a job to be submitted or a task to come back.
+     */
+    private void awaitWork() throws InterruptedException {
+        workLock.lock();
+        try {
+            workChanged.await(1, TimeUnit.SECONDS);
+        } finally {
+            workLock.unlock();
+        }
+    }
+
+    private void signalWork() {
+        workLock.lock();
+        try {
+            workChanged.signalAll();
+        } finally {
+            workLock.unlock();
+        }
+    }
+
+    /**
+     * Work-stealing task queue for a single job. Images are dealt into one
+     * backlog per slave up front; a slave takes from the head of its own backlog
+     * whenever it has a free credit and, once that runs dry, steals from the
+     * tail of the longest remaining backlog. Nothing leaves a backlog until it
+     * is actually sent, so a slow slave never sits on work others could do.
+     *
+     * Tasks that come back without a result, because their slave was lost or
+     * reported a failure, are retried ahead of the backlogs until they have been
+     * sent MAX_ATTEMPTS times. The job is done once every image has completed
+     * or failed for good.
+     *
+     * With weighted scheduling, backlogs are dealt in proportion to each
+     * slave's speed, and a slave steals only what it would finish before the
+     * victim got to it.
+     *
+     * Once no unsent task is left, an idle slave is given a copy of the
+     * longest running straggler instead. Whichever copy answers first counts
+     * and the other is cancelled.
+     *
+     * The slaves' dispatchers serve several jobs at once. The pass of a job
+     * grows by the tasks it was sent divided by its priority's weight, and the
+     * job with the lowest pass is served first.
+     */
+    class TaskDistributor {
+        private final String jobId;
+        private final String scriptHash;
+        private final File script;
+        private final int batchSize;
+        private final Map<SlaveHandler, BlockingDeque<Task>> backlogs = new ConcurrentHashMap<>();
+        private final BlockingDeque<Task> retries = new LinkedBlockingDeque<>();
+        // Times each task has been sent, by task id
+        private final Map<Long, Integer> attempts = new ConcurrentHashMap<>();
+        // Tasks that completed or failed for good
+        private final Set<Long> finished = ConcurrentHashMap.newKeySet();
+        // Where each unfinished task is running, and its duplicate if it has one
+        private final Map<Long, Lease> running = new ConcurrentHashMap<>();
+        private final Map<Long, Lease> speculative = new ConcurrentHashMap<>();
+        // When each task waiting to be sent was queued, for the queue wait metric
+        private final Map<Long, Long> queuedAt = new ConcurrentHashMap<>();
+        // Send-to-result times of finished tasks, for the straggler threshold
+        private final List<Long> durations = new ArrayList<>();
+        private final LongSupplier clock = MasterEngine.this.clock;
+        private final AtomicLong nextSpeculation = new AtomicLong(clock.getAsLong());
+        private final boolean weighted = weightedScheduling;
+        // Assumed speed per slot of slaves with no measurements yet
+        private volatile double speedPerSlot = 1;
+        private final int total;
+        // Slaves that hold the job's script and may be sent its tasks
+        private final Set<SlaveHandler> participants = ConcurrentHashMap.newKeySet();
+        private volatile Priority priority;
+        private final long sequence = jobSequence.incrementAndGet();
+        private double pass = currentPass();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private volatile boolean cancelled = false;
+
+        public TaskDistributor(String jobId, String scriptHash, File script, int batchSize, int total,
+                               Priority priority) {
+            this.jobId = jobId;
+            this.scriptHash = scriptHash;
+            this.script = script;
+            this.batchSize = batchSize;
+            this.total = total;
+            this.priority = priority;
+        }
+
+        synchronized double pass() {
+            return pass;
+        }
+
+        synchronized void charge(int tasks) {
+            pass += (double) tasks / priority.weight();
+        }
+
+        /**
+         * Publishes the job's progress as job.<id>.* gauges; completions and
+         * failures are counted as they happen.
+         */
+        void trackMetrics() {
+            String prefix = "job." + jobId + ".";
+            long started = System.nanoTime();
+            metrics.gauge(prefix + "queued", () -> queuedAt.size());
+            metrics.gauge(prefix + "running", () -> running.size());
+            metrics.gauge(prefix + "remaining", () -> total - finished.size());
+            metrics.gauge(prefix + "throughput", () -> finished.size() / ((System.nanoTime() - started) / 1e9));
+        }
+
+        /**
+         * Deals the tasks into one backlog per slave, round robin or, with
+         * weighted scheduling, in proportion to the slaves' speeds.
+         */
+        public void deal(List<SlaveHandler> slaves, List<Task> tasks) {
+            long now = clock.getAsLong();
+            for (Task task : tasks) {
+                queuedAt.put(task.id(), now);
+            }
+            if (slaves.isEmpty()) {
+                retries.addAll(tasks);
+                return;
+            }
+            for (SlaveHandler slave : slaves) {
+                backlogs.putIfAbsent(slave, new LinkedBlockingDeque<>());
+            }
+            if (!weighted) {
+                for (int i = 0; i < tasks.size(); i++) {
+                    backlogs.get(slaves.get(i % slaves.size())).addLast(tasks.get(i));
+                }
+                return;
+            }
+
+            double measured = 0;
+            int measuredSlots = 0;
+            for (SlaveHandler slave : slaves) {
+                if (slave.speed() > 0) {
+                    measured += slave.speed();
+                    measuredSlots += slave.getSlots();
+                }
+            }
+            if (measuredSlots > 0) {
+                speedPerSlot = measured / measuredSlots;
+            }
+
+            // Largest remainder: each slave gets its share rounded down, the
+            // leftover tasks go to the largest fractions
+            double[] weights = new double[slaves.size()];
+            double sum = 0;
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = weightOf(slaves.get(i));
+                sum += weights[i];
+            }
+            if (sum <= 0) {
+                Arrays.fill(weights, 1);
+                sum = weights.length;
+            }
+            int[] shares = new int[weights.length];
+            Integer[] byRemainder = new Integer[weights.length];
+            int dealt = 0;
+            for (int i = 0; i < weights.length; i++) {
+                shares[i] = (int) (tasks.size() * weights[i] / sum);
+                dealt += shares[i];
+                byRemainder[i] = i;
+            }
+            double total = sum;
+            Arrays.sort(byRemainder, Comparator.comparingDouble(
+                    (Integer i) -> tasks.size() * weights[i] / total - shares[i]).reversed());
+            for (int i = 0; dealt < tasks.size(); i++, dealt++) {
+                shares[byRemainder[i % weights.length]]++;
+            }
+
+            int next = 0;
+            for (int i = 0; i < shares.length; i++) {
+                BlockingDeque<Task> backlog = backlogs.get(slaves.get(i));
+                for (int j = 0; j < shares[i]; j++) {
+                    backlog.addLast(tasks.get(next++));
+                }
+            }
+        }
+
+        /**
+         * The slave's speed in images per second, estimated from its slots
+         * while unmeasured, or 0 while it is saturated and some slave is not.
+         */
+        private double weightOf(SlaveHandler slave) {
+            if (slave.isSaturated() && !allSaturated.get()) return 0;
+            double speed = slave.speed();
+            return speed > 0 ? speed : slave.getSlots() * speedPerSlot;
+        }
+
+        /**
+         * Lets the slave's dispatcher take tasks of this job, once the slave
+         * has its script.
+         */
+        public void addSlave(SlaveHandler slave) {
+            if (isDone()) return;
+            backlogs.putIfAbsent(slave, new LinkedBlockingDeque<>());
+            participants.add(slave);
+            signalWork();
+        }
+
+        public boolean isParticipant(SlaveHandler slave) {
+            return participants.contains(slave);
+        }
+
+        /**
+         * Hands the unsent backlog of a lost slave to the others.
+         */
+        public void removeSlave(SlaveHandler slave) {
+            participants.remove(slave);
+            BlockingDeque<Task> backlog = backlogs.remove(slave);
+            if (backlog != null && !backlog.isEmpty()) {
+                backlog.drainTo(retries);
+                signalWork();
+            }
+        }
+
+        public Task nextTask(SlaveHandler slave) {
+            Task task = retries.pollFirst();
+            if (task == null) {
+                BlockingDeque<Task> own = backlogs.get(slave);
+                task = own == null ? null : own.pollFirst();
+            }
+            if (task == null) {
+                task = steal(slave);
+            }
+            if (task == null) {
+                return speculate(slave);
+            }
+            attempts.merge(task.id(), 1, Integer::sum);
+            long now = clock.getAsLong();
+            Long since = queuedAt.remove(task.id());
+            if (since != null) queueWait.recordNanos(now - since);
+            running.put(task.id(), new Lease(task, slave, now));
+            return task;
+        }
+
+        /**
+         * Picks the longest running task that is overdue by the job's own
+         * standards, is not on this slave and has no copy yet. Duplicates do
+         * not count as attempts.
+         */
+        private Task speculate(SlaveHandler slave) {
+            long now = clock.getAsLong();
+            long due = nextSpeculation.get();
+            if (now - due < 0) return null;
+            if (!nextSpeculation.compareAndSet(due, now + TimeUnit.MILLISECONDS.toNanos(SPECULATION_INTERVAL_MILLIS))) {
+                return null;
+            }
+            long threshold = stragglerThreshold();
+            if (threshold < 0) return null;
+
+            Lease oldest = null;
+            for (Lease lease : running.values()) {
+                if (lease.slave() != slave && now - lease.sentAt() > threshold
+                        && !speculative.containsKey(lease.task().id())
+                        && (oldest == null || lease.sentAt() < oldest.sentAt())) {
+                    oldest = lease;
+                }
+            }
+            if (oldest == null) return null;
+            Task task = oldest.task();
+            if (speculative.putIfAbsent(task.id(), new Lease(task, slave, now)) != null) return null;
+
+            log(String.format("Job %s: %s has run %d ms on %s, duplicating it on %s", jobId, task.image().getName(),
+                    TimeUnit.NANOSECONDS.toMillis(now - oldest.sentAt()), oldest.slave().getSlaveId(), slave.getSlaveId()));
+            return task;
+        }
+
+        /**
+         * p95 of the finished tasks' durations times SPECULATION_FACTOR, in
+         * nanoseconds, or -1 while too few tasks have finished to tell.
+         */
+        private long stragglerThreshold() {
+            long[] sorted;
+            synchronized (durations) {
+                if (durations.size() < SPECULATION_MIN_SAMPLES) return -1;
+                sorted = durations.stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            long p95 = sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+            return Math.max((long) (p95 * SPECULATION_FACTOR), TimeUnit.MILLISECONDS.toNanos(SPECULATION_MIN_MILLIS));
+        }
+
+        /**
+         * Forgets the copy of a task held by a slave that will not deliver
+         * it. Returns true if another copy is still running, in which case the
+         * task needs no retry.
+         */
+        public boolean dropCopy(long taskId, SlaveHandler slave) {
+            Lease own = running.get(taskId);
+            if (own != null && own.slave() == slave) {
+                running.remove(taskId, own);
+                // The duplicate, if any, carries on as the task's only copy
+                Lease copy = speculative.remove(taskId);
+                if (copy != null) {
+                    running.put(taskId, copy);
+                    return true;
+                }
+                return false;
+            }
+            Lease copy = speculative.get(taskId);
+            if (copy != null && copy.slave() == slave) {
+                speculative.remove(taskId, copy);
+                return running.containsKey(taskId);
+            }
+            return false;
+        }
+
+        /**
+         * Puts a task that came back without a result in line again. Returns
+         * false when it has used up its attempts.
+         */
+        public boolean retry(Task task) {
+            if (cancelled || attempts.getOrDefault(task.id(), 0) >= MAX_ATTEMPTS) {
+                return false;
+            }
+            queuedAt.put(task.id(), clock.getAsLong());
+            retries.addLast(task);
+            signalWork();
+            return true;
+        }
+
+        /**
+         * Records that a task completed, on the given slave, or failed for
+         * good. Returns false if it already had, so each task is reported
+         * once. A copy still running elsewhere is cancelled.
+         */
+        public boolean finish(long taskId, SlaveHandler by) {
+            if (!finished.add(taskId)) return false;
+            queuedAt.remove(taskId);
+            metrics.increment("job." + jobId + (by != null ? ".completed" : ".failed"));
+            Lease lease = running.remove(taskId);
+            Lease copy = speculative.remove(taskId);
+            for (Lease held : new Lease[] {lease, copy}) {
+                if (held == null) continue;
+                if (held.slave() == by) {
+                    synchronized (durations) {
+                        durations.add(clock.getAsLong() - held.sentAt());
+                    }
+                } else if (copy != null) {
+                    held.slave().cancel(taskId);
+                }
+            }
+            if (finished.size() == total) {
+                activeJobs.remove(jobId, this);
+                signal();
+            }
+            return true;
+        }
+
+        public int attempts(long taskId) {
+            return attempts.getOrDefault(taskId, 0);
+        }
+
+        public boolean isDone() {
+            return cancelled || finished.size() >= total;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            signal();
+        }
+
+        /**
+         * Runs on the job's thread: returns once the job is done.
+         */
+        public void run() {
+            lock.lock();
+            try {
+                while (!isDone()) {
+                    changed.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void signal() {
+            lock.lock();
+            try {
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Task steal(SlaveHandler thief) {
+            if (weighted) return stealWeighted(thief);
+            while (true) {
+                BlockingDeque<Task> victim = null;
+                int longest = 0;
+                for (Map.Entry<SlaveHandler, BlockingDeque<Task>> entry : backlogs.entrySet()) {
+                    int size = entry.getValue().size();
+                    if (entry.getKey() != thief && size > longest) {
+                        victim = entry.getValue();
+                        longest = size;
+                    }
+                }
+                if (victim == null) return null;
+
+                Task task = victim.pollLast();
+                if (task != null) return task;
+            }
+        }
+
+        /**
+         * Takes the tail of the backlog that would take longest to drain, but
+         * only if the thief would finish that task before its owner got to it.
+         */
+        private Task stealWeighted(SlaveHandler thief) {
+            double thiefWeight = weightOf(thief);
+            if (thiefWeight <= 0) return null;
+            double thiefFinish = (thief.inFlightCount() + 1) / thiefWeight;
+            while (true) {
+                BlockingDeque<Task> victim = null;
+                double latest = thiefFinish;
+                for (Map.Entry<SlaveHandler, BlockingDeque<Task>> entry : backlogs.entrySet()) {
+                    int size = entry.getValue().size();
+                    if (entry.getKey() == thief || size == 0) continue;
+                    double weight = weightOf(entry.getKey());
+                    double finish = weight > 0
+                            ? (entry.getKey().inFlightCount() + size) / weight
+                            : Double.POSITIVE_INFINITY;
+                    if (finish > latest) {
+                        victim = entry.getValue();
+                        latest = finish;
+                    }
+                }
+                if (victim == null) return null;
+
+                Task task = victim.pollLast();
+                if (task != null) return task;
+            }
+        }
+    }
+
+    /**
+     * Lets a slave that connected while jobs are running take part in them.
+     */
+    private void joinActiveJobs(SlaveHandler slave) {
+        for (TaskDistributor job : activeJobs.values()) {
+            try {
+                slave.sendScript(job.jobId, job.script);
+            } catch (IOException e) {
+                warn("Failed to send script to " + slave.getSlaveId() + ": " + e.getMessage());
+                return;
+            }
+            job.addSlave(slave);
+            log("Slave " + slave.getSlaveId() + " joined job " + job.jobId);
+        }
+    }
+
+    /**
+     * A task came back without a result. It is sent again while it has
+     * attempts left and recorded as failed after that.
+     */
+    private void retryOrFail(SlaveHandler slave, PendingTask task, String reason) {
+        TaskDistributor job = activeJobs.get(task.jobId());
+        if (job == null) return;
+
+        long taskId = task.task().id();
+        String imageName = task.task().image().getName();
+        if (job.dropCopy(taskId, slave)) {
+            // Its duplicate may still deliver
+            return;
+        }
+        if (job.retry(task.task())) {
+            warn("Retrying " + imageName + " (attempt " + (job.attempts(taskId) + 1) + "): " + reason);
+        } else if (job.finish(taskId, null)) {
+            warn("Giving up on " + imageName + " after " + job.attempts(taskId) + " attempt(s): " + reason);
+            dbHandler.updateTask(task.jobId(), taskId, "FAILED", reason);
+        }
+    }
+
+    public static String getLocalIP() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            return "127.0.0.1";
+        }
+    }
+
+    private void log(String message) {
+        listener.log(EventLog.Level.INFO, message);
+    }
+
+    private void debug(String message) {
+        listener.log(EventLog.Level.DEBUG, message);
+    }
+
+    private void warn(String message) {
+        listener.log(EventLog.Level.WARN, message);
+    }
+
+    /**
+     * How a SlaveHandler reaches its slave. A blocking link writes to the
+     * socket from the calling thread; a selector link queues the bytes and
+     * lets an I/O thread write them. Callers hold the handler's write lock.
+     */
+    interface SlaveLink {
+        DataOutputStream output();
+
+        /**
+         * Writes a file in FileTransfer framing after whatever is already in
+         * {@link #output()}, compressed at {@code level} unless it is 0. The
+         * trailer is left for the caller's flush.
+         */
+        void sendFile(File file, int level) throws IOException;
+
+        /**
+         * Blocks while too much is queued for the slave. Returns at once for
+         * links that write synchronously.
+         */
+        default void awaitWritable() throws InterruptedException {
+        }
+
+        void close() throws IOException;
+
+        /**
+         * Closes without waiting for queued output, for slaves that stopped
+         * reading.
+         */
+        default void abort() throws IOException {
+            close();
+        }
+    }
+
+    static class StreamLink implements SlaveLink {
+        private final Socket socket;
+        private final boolean zeroCopy;
+        private final DataOutputStream out;
+
+        StreamLink(Socket socket, boolean zeroCopy) throws IOException {
+            this.socket = socket;
+            this.zeroCopy = zeroCopy;
+            this.out = new LockFreeDataOutputStream(new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER));
+        }
+
+        public DataOutputStream output() {
+            return out;
+        }
+
+        public void sendFile(File file, int level) throws IOException {
+            if (zeroCopy) {
+                FileTransfer.sendFile(out, socket.getChannel(), file, level);
+            } else if (level == 0 && file.length() >= FileTransfer.MAPPED_THRESHOLD && socket.getChannel() != null) {
+                // Large inputs go from the page cache to the socket without a heap copy
+                FileTransfer.sendMapped(out, socket.getChannel(), file);
+            } else {
+                FileTransfer.sendFile(out, file, file.getName(), level);
+            }
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * DataOutputStream without its synchronized bulk writes: a virtual thread
+     * blocked on the socket inside a monitor pins its carrier, and the
+     * handler's write lock already serializes writers.
+     */
+    static class LockFreeDataOutputStream extends DataOutputStream {
+        LockFreeDataOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written += len;
+        }
+    }
+
+    class SlaveHandler implements Runnable {
+        private final String slaveId = UUID.randomUUID().toString();
+        private final Socket socket;
+        private final SlaveLink link;
+        private final DataOutputStream out;
+        // Only used by the blocking transport, whose reader thread runs run()
+        private DataInputStream in;
+        // Refreshed by anything the slave sends, so a long result transfer that
+        // holds back its heartbeats does not make it look hung
+        private volatile long lastHeard = System.currentTimeMillis();
+        private volatile SlaveMetrics slaveMetrics;
+        private volatile boolean saturated;
+        // Deflate level both sides accept, 0 until the slave offers one
+        private volatile int agreedCompression = 0;
+        private final AtomicBoolean lost = new AtomicBoolean(false);
+        private final boolean useZeroCopy = zeroCopy;
+        // Tasks this slave is willing to have in flight, granted by READY and returned by each result
+        private final Semaphore credits = new Semaphore(0);
+        private volatile int slots = 1;
+        // Smoothed time between two completed tasks, the basis for adaptive batch sizes
+        private volatile double completionIntervalMillis = -1;
+        private long lastCompletion = System.nanoTime();
+        // Tasks sent to this slave and not yet answered, by task id
+        private final Map<Long, PendingTask> inFlight = new ConcurrentHashMap<>();
+        // Content hashes the slave holds in its local cache
+        private final Set<String> cachedContent = ConcurrentHashMap.newKeySet();
+        // Guards out; a lock rather than a monitor so a virtual thread blocked on
+        // the socket releases its carrier
+        private final ReentrantLock writeLock = new ReentrantLock();
+
+        /**
+         * Handler for a blocking connection, read by {@link #run()}.
+         */
+        public SlaveHandler(Socket socket) throws IOException {
+            this.socket = socket;
+            this.link = new StreamLink(socket, useZeroCopy);
+            this.out = link.output();
+            this.in = new FileTransfer.SocketInput(socket, SOCKET_BUFFER, this::onActivity);
+            trackMetrics();
+        }
+
+        /**
+         * Handler for a connection whose I/O is done by the given link, which
+         * also delivers the slave's messages to the on* methods.
+         */
+        public SlaveHandler(Socket socket, SlaveLink link) {
+            this.socket = socket;
+            this.link = link;
+            this.out = link.output();
+            trackMetrics();
+        }
+
+        /**
+         * Publishes the slave's load as slave.<id>.* gauges, dropped when the
+         * connection is lost.
+         */
+        private void trackMetrics() {
+            String prefix = "slave." + slaveId + ".";
+            metrics.gauge(prefix + "in_flight", inFlight::size);
+            metrics.gauge(prefix + "speed", this::speed);
+            metrics.gauge(prefix + "queue_depth", () -> slaveMetrics != null ? slaveMetrics.queueDepth() : 0);
+            metrics.gauge(prefix + "execute_ms", () -> slaveMetrics != null ? slaveMetrics.executeMillis() : 0);
+        }
+
+        public void sendScript(String jobId, File script) throws IOException {
+            writeLock.lock();
+            try {
+                out.writeUTF("SCRIPT");
+                out.writeUTF(jobId);
+                writeContent(script);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Sends a single task again, for a slave that no longer had its content.
+         */
+        public void sendImage(String jobId, long taskId, File image) throws IOException {
+            writeLock.lock();
+            try {
+                out.writeUTF("IMAGE");
+                out.writeUTF(jobId);
+                out.writeLong(taskId);
+                writeContent(image);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        public void sendBatch(List<Task> tasks, String jobId, String scriptHash) throws IOException {
+            // Leased before anything is written, so a connection lost midway finds them all
+            for (Task task : tasks) {
+                inFlight.put(task.id(), new PendingTask(jobId, scriptHash, ContentHash.of(task.image()), task,
+                        System.nanoTime()));
+            }
+            writeLock.lock();
+            try {
+                out.writeUTF("BATCH");
+                out.writeUTF(jobId);
+                out.writeInt(tasks.size());
+                for (Task task : tasks) {
+                    out.writeLong(task.id());
+                    writeContent(task.image());
+                }
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Lets the slave drop a finished job's script and workers.
+         */
+        public void endJob(String jobId) {
+            writeLock.lock();
+            try {
+                out.writeUTF("END");
+                out.writeUTF(jobId);
+                out.flush();
+            } catch (IOException e) {
+                // Lost slaves are cleaned up by their reader
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Writes a file as a reference to the slave's content cache when the
+         * slave is known to hold it, and inline with its hash otherwise.
+         */
+        private void writeContent(File file) throws IOException {
+            String hash = ContentHash.of(file);
+            contentByHash.put(hash, file);
+            if (cachedContent.contains(hash)) {
+                out.writeBoolean(false);
+                out.writeUTF(file.getName());
+                out.writeUTF(hash);
+            } else {
+                out.writeBoolean(true);
+                out.writeUTF(hash);
+                link.sendFile(file, FileTransfer.compressionLevel(file, agreedCompression));
+                cachedContent.add(hash);
+                metrics.add("slave." + slaveId + ".bytes_out", file.length());
+            }
+        }
+
+        /**
+         * Waits for the slave to have room for another task. Returns false once
+         * the connection is gone.
+         */
+        public boolean acquireCredit() throws InterruptedException {
+            while (!socket.isClosed() && !lost.get()) {
+                if (credits.tryAcquire(1, TimeUnit.SECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Takes up to {@code max} further credits, waiting at most
+         * {@code lingerMillis} in total for them. Returns how many were taken.
+         */
+        public int acquireMoreCredits(int max, long lingerMillis) throws InterruptedException {
+            int taken = 0;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            while (taken < max) {
+                long remaining = deadline - System.nanoTime();
+                if (!credits.tryAcquire(Math.max(0, remaining), TimeUnit.NANOSECONDS)) break;
+                taken++;
+            }
+            return taken;
+        }
+
+        public void releaseCredit() {
+            credits.release();
+        }
+
+        public void releaseCredits(int count) {
+            if (count > 0) credits.release(count);
+        }
+
+        public void awaitWritable() throws InterruptedException {
+            link.awaitWritable();
+        }
+
+        public int adaptiveBatchSize() {
+            double interval = completionIntervalMillis;
+            if (interval <= 0) {
+                return Math.min(slots, MAX_BATCH);
+            }
+            return (int) Math.max(1, Math.min(MAX_BATCH, ADAPTIVE_BATCH_MILLIS / interval));
+        }
+
+        private synchronized void recordCompletion() {
+            long now = System.nanoTime();
+            // Cap gaps so idle time between jobs does not dominate the average
+            double sample = Math.min((now - lastCompletion) / 1e6, 10_000);
+            lastCompletion = now;
+            completionIntervalMillis = completionIntervalMillis < 0
+                    ? sample
+                    : 0.8 * completionIntervalMillis + 0.2 * sample;
+        }
+
+        public String getSlaveId() {
+            return slaveId;
+        }
+
+        public int getSlots() {
+            return slots;
+        }
+
+        public void disconnect() {
+            try {
+                if (socket != null && !socket.isClosed()) {
+                    link.close();
+                }
+            } catch (IOException ex) {
+                warn("Error disconnecting slave " + slaveId + ": " + ex.getMessage());
+            }
+        }
+
+        public void abort() {
+            try {
+                link.abort();
+            } catch (IOException ex) {
+                warn("Error disconnecting slave " + slaveId + ": " + ex.getMessage());
+            }
+        }
+
+        /**
+         * Sends the slave its ID, the first thing it reads after connecting.
+         */
+        public void greet() throws IOException {
+            writeLock.lock();
+            try {
+                out.writeUTF(slaveId);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    String command = in.readUTF();
+                    if ("HEARTBEAT".equals(command)) {
+                        onHeartbeat();
+                    } else if ("METRICS".equals(command)) {
+                        onMetrics(SlaveMetrics.read(in));
+                    } else if ("SLOTS".equals(command)) {
+                        onSlots(in.readInt());
+                    } else if ("INVENTORY".equals(command)) {
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            onInventory(in.readUTF());
+                        }
+                    } else if ("EVICTED".equals(command)) {
+                        onEvicted(in.readUTF());
+                    } else if ("MISSING".equals(command)) {
+                        onMissing(in.readUTF(), in.readUTF(), in.readLong(), in.readUTF());
+                    } else if ("READY".equals(command)) {
+                        onReady(in.readInt());
+                    } else if ("COMPRESSION".equals(command)) {
+                        onCompression(in.readInt());
+                    } else if ("RESULT".equals(command)) {
+                        long taskId = in.readLong();
+                        long start = System.nanoTime();
+                        onResult(taskId, FileTransfer.receiveFile(in, resultDir(taskId), useZeroCopy),
+                                System.nanoTime() - start);
+                    } else if ("FAILED".equals(command)) {
+                        onFailed(in.readLong(), in.readUTF());
+                    }
+                }
+            } catch (Exception ex) {
+                connectionLost();
+            }
+        }
+
+        /**
+         * Bytes arrived from the slave, be it a message or part of one.
+         */
+        void onActivity() {
+            lastHeard = System.currentTimeMillis();
+        }
+
+        void onHeartbeat() {
+            lastHeard = System.currentTimeMillis();
+            debug("Heartbeat from " + slaveId);
+        }
+
+        /**
+         * A heartbeat that also describes the slave's load.
+         */
+        void onMetrics(SlaveMetrics metrics) {
+            lastHeard = System.currentTimeMillis();
+            this.slaveMetrics = metrics;
+            debug("Metrics from " + slaveId + ": " + metrics);
+
+            boolean now = metrics.freeDiskBytes() < MIN_FREE_DISK_BYTES
+                    || metrics.cpuLoad() > SATURATED_CPU_LOAD;
+            if (now == saturated) return;
+            saturated = now;
+            if (now) {
+                warn("Slave " + slaveId + " saturated (" + (metrics.freeDiskBytes() >> 20)
+                        + " MB free, load " + metrics.cpuLoad() + "); no new work until it recovers");
+            } else {
+                log("Slave " + slaveId + " recovered (" + (metrics.freeDiskBytes() >> 20)
+                        + " MB free, load " + metrics.cpuLoad() + ")");
+            }
+            updateSaturation();
+        }
+
+        /**
+         * Images per second the slave completes: as it reports, else as the
+         * master measured, else 0 while unknown.
+         */
+        public double speed() {
+            SlaveMetrics reported = slaveMetrics;
+            if (reported != null && reported.throughput() > 0) return reported.throughput();
+            double interval = completionIntervalMillis;
+            return interval > 0 ? 1000 / interval : 0;
+        }
+
+        /**
+         * True while the slave last reported too little disk or too much
+         * foreign load to take more work.
+         */
+        public boolean isSaturated() {
+            return saturated;
+        }
+
+        public int inFlightCount() {
+            return inFlight.size();
+        }
+
+        void onSlots(int slots) {
+            this.slots = slots;
+            debug("Slave " + slaveId + " runs " + slots + " tasks in parallel");
+        }
+
+        void onInventory(String hash) {
+            cachedContent.add(hash);
+        }
+
+        void onEvicted(String hash) {
+            cachedContent.remove(hash);
+        }
+
+        void onReady(int count) {
+            credits.release(count);
+        }
+
+        /**
+         * The slave accepts compressed content up to this level. Answered with
+         * the level both sides will use, off the reader thread.
+         */
+        void onCompression(int level) {
+            int agreed = Math.max(0, Math.min(level, compressionLevel));
+            agreedCompression = agreed;
+            debug("Slave " + slaveId + " compression level " + agreed);
+            executor.execute(() -> {
+                writeLock.lock();
+                try {
+                    out.writeUTF("COMPRESSION");
+                    out.writeInt(agreed);
+                    out.flush();
+                } catch (IOException e) {
+                    warn("Failed to answer compression offer of " + slaveId + ": " + e.getMessage());
+                } finally {
+                    writeLock.unlock();
+                }
+            });
+        }
+
+        /**
+         * Directory a result of this slave for the task is received into. It
+         * belongs to this copy of the task alone; {@link #onResult} moves the
+         * result into the job's directory only once the task accepts it.
+         */
+        File resultDir(long taskId) {
+            File dir = new File(new File(incomingDir(), slaveId), Long.toString(taskId));
+            dir.mkdirs();
+            return dir;
+        }
+
+        /**
+         * A result arrived, which took {@code receiveNanos} to read off the
+         * connection. It is stored if it is the first for its task and
+         * dropped otherwise, such as when a duplicate already answered.
+         */
+        void onResult(long taskId, File received, long receiveNanos) {
+            receiveTime.recordNanos(receiveNanos);
+            metrics.add("slave." + slaveId + ".bytes_in", received.length());
+            PendingTask task = inFlight.remove(taskId);
+            if (task != null) {
+                long start = System.nanoTime();
+                roundTrip.recordNanos(start - task.sentAt());
+                metrics.increment("slave." + slaveId + ".completed");
+                // Recorded once per task, and not at all once the job was stopped
+                TaskDistributor job = activeJobs.get(task.jobId());
+                if (job != null && job.finish(taskId, this)) {
+                    storeResult(task, received);
+                }
+                saveTime.recordSince(start);
+            }
+            // Whatever was not moved into the job's directory goes with it
+            deleteRecursively(received.getParentFile());
+            recordCompletion();
+            credits.release();
+            if (allSaturated.get() && inFlight.isEmpty()) signalWork();
+        }
+
+        void onFailed(long taskId, String reason) {
+            PendingTask task = inFlight.remove(taskId);
+            if (task != null) {
+                metrics.increment("slave." + slaveId + ".failed");
+                warn("Slave " + slaveId + " failed to process " + task.task().image().getName() + ": " + reason);
+                retryOrFail(this, task, reason);
+            }
+            recordCompletion();
+            credits.release();
+            if (allSaturated.get() && inFlight.isEmpty()) signalWork();
+        }
+
+        /**
+         * Drops the slave and hands every task it held to the remaining ones.
+         * Safe to call more than once and from any thread.
+         */
+        void connectionLost() {
+            if (!lost.compareAndSet(false, true)) return;
+            log("Slave disconnected: " + slaveId);
+            slaves.remove(slaveId);
+            metrics.remove("slave." + slaveId + ".");
+            disconnect();
+            // Results cut off mid-transfer
+            deleteRecursively(new File(incomingDir(), slaveId));
+            updateSaturation();
+
+            for (TaskDistributor job : activeJobs.values()) {
+                job.removeSlave(this);
+            }
+            if (!serverRunning) return;
+            int requeued = 0;
+            for (Long taskId : new ArrayList<>(inFlight.keySet())) {
+                PendingTask task = inFlight.remove(taskId);
+                if (task != null) {
+                    retryOrFail(this, task, "Slave " + slaveId + " lost");
+                    requeued++;
+                }
+            }
+            if (requeued > 0) {
+                warn("Requeued " + requeued + " task(s) from " + slaveId);
+            }
+        }
+
+        /**
+         * Tells the slave to drop a task whose result came from elsewhere.
+         * The slave still answers for it, which returns the credit.
+         */
+        void cancel(long taskId) {
+            if (inFlight.remove(taskId) == null) return;
+            executor.execute(() -> {
+                writeLock.lock();
+                try {
+                    out.writeUTF("CANCEL");
+                    out.writeLong(taskId);
+                    out.flush();
+                } catch (IOException e) {
+                    warn("Failed to cancel task " + taskId + " on " + slaveId + ": " + e.getMessage());
+                } finally {
+                    writeLock.unlock();
+                }
+            });
+        }
+
+        boolean isLost() {
+            return lost.get();
+        }
+
+        /**
+         * Requeues those of the tasks still leased to this slave.
+         */
+        void reclaim(List<Task> tasks) {
+            for (Task leased : tasks) {
+                PendingTask task = inFlight.remove(leased.id());
+                if (task != null) {
+                    retryOrFail(this, task, "Slave " + slaveId + " lost");
+                }
+            }
+        }
+
+        /**
+         * The slave was sent a cache reference it no longer holds; send the
+         * content inline. Runs off the reader thread so the two sides never
+         * wait on each other's full socket buffers. Content the master no
+         * longer knows cannot be resent: an image's task is retried elsewhere
+         * or failed, and a job without its script fails its tasks on the slave.
+         */
+        void onMissing(String command, String jobId, long taskId, String hash) {
+            cachedContent.remove(hash);
+            File file = contentByHash.get(hash);
+            if (file == null) {
+                String reason = "Slave " + slaveId + " is missing unknown content " + hash;
+                warn(reason);
+                if ("SCRIPT".equals(command)) return;
+                PendingTask task = inFlight.remove(taskId);
+                if (task != null) {
+                    retryOrFail(this, task, reason);
+                }
+                // The slave drops the task without answering, so its credit comes back here
+                credits.release();
+                if (allSaturated.get() && inFlight.isEmpty()) signalWork();
+                return;
+            }
+            executor.execute(() -> {
+                try {
+                    if ("SCRIPT".equals(command)) {
+                        sendScript(jobId, file);
+                    } else {
+                        sendImage(jobId, taskId, file);
+                    }
+                } catch (IOException e) {
+                    warn("Failed to resend " + file.getName() + " to " + slaveId + ": " + e.getMessage());
+                }
+            });
+        }
+
+        public boolean isAlive() {
+            return (System.currentTimeMillis() - lastHeard) < HEARTBEAT_TIMEOUT_MILLIS;
+        }
+    }
+
+
+
+    /**
+     * One image of a job, identified by its row in the tasks table so results
+     * are matched to it regardless of file names.
+     */
+    record Task(long id, File image) {
+    }
+
+    /**
+     * Where and since when a task of a running job is being processed.
+     */
+    record Lease(Task task, SlaveHandler slave, long sentAt) {
+    }
+
+    /**
+     * A task sent to a slave, remembered until its result comes back or it
+     * is handed to another slave.
+     */
+    record PendingTask(String jobId, String scriptHash, String inputHash, Task task, long sentAt) {
+    }
+
+    /**
+     * Writes queued for the database writer thread.
+     */
+    sealed interface PendingWrite permits TaskUpdate, CachedResult, JobCounters, JobCompletion, JobCheck {
+    }
+
+    record TaskUpdate(String jobId, long taskId, String status, String outputFile) implements PendingWrite {
+    }
+
+    record CachedResult(String scriptHash, String inputHash, String outputFile) implements PendingWrite {
+    }
+
+    record JobCounters(String jobId, int completed, int failed) implements PendingWrite {
+    }
+
+    record JobCompletion(String jobId, String status) implements PendingWrite {
+    }
+
+    record JobSummary(String jobId, String startTime, String status, int numImages,
+                      int completed, int failed, int cacheHits, Priority priority) {
+    }
+
+    record JobCheck(String jobId) implements PendingWrite {
+    }
+
+    /**
+     * In-memory completion counts for a running job, so finishing a task never
+     * needs a count query.
+     */
+    static class JobProgress {
+        private final int total;
+        private final Set<Long> completed = new HashSet<>();
+        private final Set<Long> failed = new HashSet<>();
+
+        JobProgress(int total) {
+            this.total = total;
+        }
+
+        /**
+         * Records a task's new status and returns true when it settled the last
+         * outstanding task, completed or failed.
+         */
+        synchronized boolean record(long taskId, String status) {
+            boolean wasDone = isDone();
+            if ("COMPLETED".equals(status)) {
+                failed.remove(taskId);
+                completed.add(taskId);
+            } else if ("FAILED".equals(status) && !completed.contains(taskId)) {
+                failed.add(taskId);
+            }
+            return !wasDone && isDone();
+        }
+
+        private boolean isDone() {
+            return completed.size() + failed.size() == total;
+        }
+
+        synchronized int completedCount() {
+            return completed.size();
+        }
+
+        synchronized int failedCount() {
+            return failed.size();
+        }
+    }
+
+    /**
+     * Drops slaves that sent nothing for too long, so tasks held by a hung slave go
+     * back to the others instead of waiting forever.
+     */
+    private void startSlaveMonitor() {
+        slaveMonitor = new Timer("slave-monitor", true);
+        slaveMonitor.scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                for (SlaveHandler slave : slaves.values()) {
+                    if (!slave.isAlive()) {
+                        warn("Slave timeout: " + slave.getSlaveId());
+                        slave.abort();
+                        slave.connectionLost();
+                    }
+                }
+            }
+        }, 10000, 10000);
+    }
+
+    class DatabaseHandler {
+        // How long the writer lets task updates gather before committing them together
+        private static final long FLUSH_INTERVAL_MS = 200;
+        private Connection conn;
+        private PreparedStatement updateTaskStmt;
+        private PreparedStatement cacheResultStmt;
+        private PreparedStatement completeJobStmt;
+        private PreparedStatement jobCountersStmt;
+        private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingQueue<>();
+        private final Map<String, JobProgress> progress = new ConcurrentHashMap<>();
+        private final Thread writer = new Thread(this::writeLoop, "db-writer");
+        private final LatencyHistogram commitTime = metrics.histogram("db.commit");
+        // Task ids are handed out here rather than by the database, so a whole
+        // job is inserted in one batch and its ids are known without reading back
+        private long lastTaskId;
+
+        public DatabaseHandler(File database) throws SQLException, ClassNotFoundException {
+            Class.forName("org.sqlite.JDBC");
+            conn = DriverManager.getConnection("jdbc:sqlite:" + database.getPath());
+            createTables();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(task_id), 0) FROM tasks")) {
+                lastTaskId = rs.next() ? rs.getLong(1) : 0;
+            }
+
+            updateTaskStmt = conn.prepareStatement("UPDATE tasks SET status = ?, output_file = ?, end_time = datetime('now') " +
+                    "WHERE task_id = ?");
+            cacheResultStmt = conn.prepareStatement("INSERT OR REPLACE INTO result_cache(script_hash, input_hash, output_file) " +
+                    "VALUES(?, ?, ?)");
+            completeJobStmt = conn.prepareStatement("UPDATE jobs SET status = ?, end_time = datetime('now') " +
+                    "WHERE job_id = ?");
+            jobCountersStmt = conn.prepareStatement("UPDATE jobs SET completed = ?, failed = ? WHERE job_id = ?");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        private void createTables() {
+            try (Statement stmt = conn.createStatement()) {
+                // Enable foreign keys and automatic timestamp
+                stmt.execute("PRAGMA foreign_keys = ON");
+                // WAL lets readers run alongside the writer; NORMAL sync only fsyncs at checkpoints
+                stmt.execute("PRAGMA journal_mode = WAL");
+                stmt.execute("PRAGMA synchronous = NORMAL");
+
+                stmt.execute("CREATE TABLE IF NOT EXISTS jobs (" +
+                        "job_id TEXT PRIMARY KEY, " +
+                        "start_time DATETIME DEFAULT CURRENT_TIMESTAMP, " +
+                        "end_time DATETIME, " +
+                        "status TEXT CHECK(status IN ('PROCESSING', 'COMPLETED', 'FAILED')) NOT NULL, " +
+                        "num_images INTEGER NOT NULL)");
+
+                stmt.execute("CREATE TABLE IF NOT EXISTS tasks (" +
+                        "task_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                        "job_id TEXT NOT NULL REFERENCES jobs(job_id) ON DELETE CASCADE, " +
+                        "image_name TEXT NOT NULL, " +
+                        "status TEXT CHECK(status IN ('PENDING', 'PROCESSING', 'COMPLETED', 'FAILED')) NOT NULL, " +
+                        "output_file TEXT, " +
+                        "start_time DATETIME DEFAULT CURRENT_TIMESTAMP, " +
+                        "end_time DATETIME)");
+
+                // Outputs already produced by a script for an input, relative to processed_results
+                stmt.execute("CREATE TABLE IF NOT EXISTS result_cache (" +
+                        "script_hash TEXT NOT NULL, " +
+                        "input_hash TEXT NOT NULL, " +
+                        "output_file TEXT NOT NULL, " +
+                        "created_time DATETIME DEFAULT CURRENT_TIMESTAMP, " +
+                        "PRIMARY KEY (script_hash, input_hash))");
+
+                addColumnIfMissing(stmt, "jobs", "cache_hits", "INTEGER NOT NULL DEFAULT 0");
+                addColumnIfMissing(stmt, "jobs", "priority", "TEXT NOT NULL DEFAULT 'NORMAL'");
+                boolean addedCompleted = addColumnIfMissing(stmt, "jobs", "completed", "INTEGER NOT NULL DEFAULT 0");
+                boolean addedFailed = addColumnIfMissing(stmt, "jobs", "failed", "INTEGER NOT NULL DEFAULT 0");
+                if (addedCompleted || addedFailed) {
+                    // One-off backfill for jobs recorded before the counters existed
+                    stmt.execute("UPDATE jobs SET " +
+                            "completed = (SELECT COUNT(*) FROM tasks t WHERE t.job_id = jobs.job_id AND t.status = 'COMPLETED'), " +
+                            "failed = (SELECT COUNT(*) FROM tasks t WHERE t.job_id = jobs.job_id AND t.status = 'FAILED')");
+                }
+
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_tasks_job_status ON tasks(job_id, status)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_tasks_job_image ON tasks(job_id, image_name)");
+                stmt.execute("CREATE INDEX IF NOT EXISTS idx_jobs_start ON jobs(start_time, job_id)");
+
+            } catch (SQLException e) {
+                warn("Database initialization failed: " + e.getMessage());
+            }
+        }
+
+
+
+        /**
+         * Adds a column to an existing table and returns true if it was missing.
+         */
+        private boolean addColumnIfMissing(Statement stmt, String table, String column, String definition) throws SQLException {
+            try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+                while (rs.next()) {
+                    if (column.equals(rs.getString("name"))) return false;
+                }
+            }
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+            return true;
+        }
+
+        /**
+         * Returns up to {@code limit} jobs, newest first, starting after
+         * {@code after} (or from the newest job when null). Uses keyset paging on
+         * the jobs(start_time, job_id) index so each page costs the same however
+         * long the history is.
+         */
+        public synchronized List<JobSummary> loadJobHistory(JobSummary after, int limit) throws SQLException {
+            String sql = "SELECT job_id, start_time, status, num_images, completed, failed, cache_hits, priority " +
+                    "FROM jobs " +
+                    (after == null ? "" : "WHERE (start_time, job_id) < (?, ?) ") +
+                    "ORDER BY start_time DESC, job_id DESC LIMIT ?";
+
+            List<JobSummary> jobs = new ArrayList<>();
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                int index = 1;
+                if (after != null) {
+                    pstmt.setString(index++, after.startTime());
+                    pstmt.setString(index++, after.jobId());
+                }
+                pstmt.setInt(index, limit);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    jobs.add(new JobSummary(
+                            rs.getString("job_id"),
+                            rs.getString("start_time"),
+                            rs.getString("status"),
+                            rs.getInt("num_images"),
+                            rs.getInt("completed"),
+                            rs.getInt("failed"),
+                            rs.getInt("cache_hits"),
+                            Priority.valueOf(rs.getString("priority"))));
+                }
+            }
+            return jobs;
+        }
+
+        public synchronized String findCachedResult(String scriptHash, String inputHash) throws SQLException {
+            String sql = "SELECT output_file FROM result_cache WHERE script_hash = ? AND input_hash = ?";
+
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, scriptHash);
+                pstmt.setString(2, inputHash);
+                ResultSet rs = pstmt.executeQuery();
+                return rs.next() ? rs.getString("output_file") : null;
+            }
+        }
+
+        public synchronized void setCacheHits(String jobId, int hits) throws SQLException {
+            String sql = "UPDATE jobs SET cache_hits = ? WHERE job_id = ?";
+
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setInt(1, hits);
+                pstmt.setString(2, jobId);
+                pstmt.executeUpdate();
+            }
+        }
+
+        public synchronized String createJob(int numImages, Priority priority) throws SQLException {
+            String jobId = UUID.randomUUID().toString();
+            String sql = "INSERT INTO jobs(job_id, start_time, status, num_images, priority) " +
+                    "VALUES(?, datetime('now'), ?, ?, ?)";
+
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, jobId);
+                pstmt.setString(2, "PROCESSING");
+                pstmt.setInt(3, numImages);
+                pstmt.setString(4, priority.name());
+                pstmt.executeUpdate();
+            }
+            return jobId;
+        }
+
+        public synchronized void setPriority(String jobId, Priority priority) throws SQLException {
+            String sql = "UPDATE jobs SET priority = ? WHERE job_id = ?";
+
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                pstmt.setString(1, priority.name());
+                pstmt.setString(2, jobId);
+                pstmt.executeUpdate();
+            }
+        }
+
+        /**
+         * Inserts all tasks of a job in one transaction, starts counting its
+         * completions in memory and returns the task ids in the order of the
+         * image names.
+         */
+        public synchronized List<Long> createTasks(String jobId, List<String> imageNames) throws SQLException {
+            String sql = "INSERT INTO tasks(task_id, job_id, image_name, status) VALUES(?, ?, ?, ?)";
+
+            List<Long> taskIds = new ArrayList<>();
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                for (String imageName : imageNames) {
+                    long taskId = lastTaskId + taskIds.size() + 1;
+                    pstmt.setLong(1, taskId);
+                    pstmt.setString(2, jobId);
+                    pstmt.setString(3, imageName);
+                    pstmt.setString(4, "PENDING");
+                    pstmt.addBatch();
+                    taskIds.add(taskId);
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            lastTaskId += taskIds.size();
+            progress.put(jobId, new JobProgress(imageNames.size()));
+            return taskIds;
+        }
+
+        /**
+         * Queues a task status change for the writer thread. Completing the last
+         * task of a job also queues the job's completion.
+         */
+        public void updateTask(String jobId, long taskId, String status, String outputFile) {
+            pendingWrites.add(new TaskUpdate(jobId, taskId, status, outputFile));
+
+            JobProgress job = progress.get(jobId);
+            if (job == null) {
+                // Job from an earlier run of the master; fall back to counting rows
+                pendingWrites.add(new JobCheck(jobId));
+                return;
+            }
+
+            boolean finished = job.record(taskId, status);
+            pendingWrites.add(new JobCounters(jobId, job.completedCount(), job.failedCount()));
+            if (finished) {
+                progress.remove(jobId);
+                String jobStatus = job.failedCount() > 0 ? "FAILED" : "COMPLETED";
+                pendingWrites.add(new JobCompletion(jobId, jobStatus));
+                log("Job " + jobStatus.toLowerCase() + ": " + jobId
+                        + (job.failedCount() > 0 ? " (" + job.failedCount() + " task(s) failed)" : ""));
+                listener.jobCompleted(jobId);
+            }
+        }
+
+        public void cacheResult(String scriptHash, String inputHash, String outputFile) {
+            pendingWrites.add(new CachedResult(scriptHash, inputHash, outputFile));
+        }
+
+        public int pendingWrites() {
+            return pendingWrites.size();
+        }
+
+        /**
+         * Writer thread: waits for the first pending write, lets more gather for
+         * FLUSH_INTERVAL_MS and commits them all in one transaction.
+         */
+        private void writeLoop() {
+            List<PendingWrite> batch = new ArrayList<>();
+            try {
+                while (true) {
+                    batch.add(pendingWrites.take());
+                    Thread.sleep(FLUSH_INTERVAL_MS);
+                    pendingWrites.drainTo(batch);
+                    long start = System.nanoTime();
+                    commit(batch);
+                    commitTime.recordSince(start);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                pendingWrites.drainTo(batch);
+                commit(batch);
+            }
+        }
+
+        /**
+         * Writes the batch in one transaction. Package-private so benchmarks
+         * can drive it without the writer thread's flush interval.
+         */
+        synchronized void commit(List<PendingWrite> batch) {
+            if (batch.isEmpty()) return;
+
+            List<String> checks = new ArrayList<>();
+            // Counters are absolute, so only the latest snapshot per job needs writing
+            Map<String, JobCounters> counters = new LinkedHashMap<>();
+            try {
+                conn.setAutoCommit(false);
+                for (PendingWrite write : batch) {
+                    switch (write) {
+                        case TaskUpdate u -> {
+                            updateTaskStmt.setString(1, u.status());
+                            updateTaskStmt.setString(2, u.outputFile());
+                            updateTaskStmt.setLong(3, u.taskId());
+                            updateTaskStmt.addBatch();
+                        }
+                        case CachedResult r -> {
+                            cacheResultStmt.setString(1, r.scriptHash());
+                            cacheResultStmt.setString(2, r.inputHash());
+                            cacheResultStmt.setString(3, r.outputFile());
+                            cacheResultStmt.addBatch();
+                        }
+                        case JobCompletion c -> {
+                            completeJobStmt.setString(1, c.status());
+                            completeJobStmt.setString(2, c.jobId());
+                            completeJobStmt.addBatch();
+                        }
+                        case JobCounters c -> counters.put(c.jobId(), c);
+                        case JobCheck c -> checks.add(c.jobId());
+                    }
+                }
+                for (JobCounters c : counters.values()) {
+                    jobCountersStmt.setInt(1, c.completed());
+                    jobCountersStmt.setInt(2, c.failed());
+                    jobCountersStmt.setString(3, c.jobId());
+                    jobCountersStmt.addBatch();
+                }
+                jobCountersStmt.executeBatch();
+                updateTaskStmt.executeBatch();
+                cacheResultStmt.executeBatch();
+                completeJobStmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                try {
+                    conn.rollback();
+                } catch (SQLException ignored) {
+                    // Nothing left to undo
+                }
+                warn("Database error: " + e.getMessage());
+            } finally {
+                try {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    warn("Database error: " + e.getMessage());
+                }
+            }
+
+            for (String jobId : new LinkedHashSet<>(checks)) {
+                try {
+                    updateJobStatus(jobId);
+                } catch (SQLException e) {
+                    warn("Database error: " + e.getMessage());
+                }
+            }
+        }
+
+        public synchronized void updateJobStatus(String jobId) throws SQLException {
+            debug("Checking completion for job: " + jobId);
+
+            String countersSql = "UPDATE jobs SET " +
+                    "completed = (SELECT COUNT(*) FROM tasks WHERE job_id = ? AND status = 'COMPLETED'), " +
+                    "failed = (SELECT COUNT(*) FROM tasks WHERE job_id = ? AND status = 'FAILED') " +
+                    "WHERE job_id = ?";
+            try (PreparedStatement pstmt = conn.prepareStatement(countersSql)) {
+                pstmt.setString(1, jobId);
+                pstmt.setString(2, jobId);
+                pstmt.setString(3, jobId);
+                pstmt.executeUpdate();
+            }
+
+            // FAILED is as final as COMPLETED; only tasks still in play hold the job open
+            String checkSql = "SELECT " +
+                    "SUM(CASE WHEN status IN ('PENDING', 'PROCESSING') THEN 1 ELSE 0 END) AS remaining, " +
+                    "SUM(CASE WHEN status = 'FAILED' THEN 1 ELSE 0 END) AS failed " +
+                    "FROM tasks WHERE job_id = ?";
+            int remaining;
+            int failed;
+
+            try (PreparedStatement pstmt = conn.prepareStatement(checkSql)) {
+                pstmt.setString(1, jobId);
+                ResultSet rs = pstmt.executeQuery();
+                remaining = rs.getInt("remaining");
+                failed = rs.getInt("failed");
+            }
+
+            if (remaining == 0) {
+                String jobStatus = failed > 0 ? "FAILED" : "COMPLETED";
+                String updateSql = "UPDATE jobs SET status = ?, end_time = datetime('now') " +
+                        "WHERE job_id = ? AND status = 'PROCESSING'";
+                try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
+                    pstmt.setString(1, jobStatus);
+                    pstmt.setString(2, jobId);
+                    if (pstmt.executeUpdate() > 0) {
+                        log("Marking job as " + jobStatus.toLowerCase() + ": " + jobId
+                                + (failed > 0 ? " (" + failed + " task(s) failed)" : ""));
+                    }
+                }
+            }
+        }
+
+        public void close() throws SQLException {
+            writer.interrupt();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (conn != null) conn.close();
+        }
+    }
+}
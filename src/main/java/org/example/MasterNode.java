@@ -0,0 +1,122 @@
+package org.example;
+
+import shared.EventLog;
+import shared.MetricsServer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command line master. Without a script it serves slaves until killed; with
+ * one it waits for enough slaves, runs the images as a single job and exits
+ * once the job is finished.
+ *
+ * With --metrics-port, counters and latency histograms are served as JSON at
+ * http://127.0.0.1:port/metrics.
+ *
+ * Usage: MasterNode [--port p] [--output dir] [--zero-copy] [--selector] [--compress level]
+ *                   [--metrics-port p] [--script file.py
+ *                   --images dir|file... [--batch n|auto] [--priority low|normal|high] [--min-slaves n]]
+ */
+public class MasterNode {
+    public static void main(String[] args) throws Exception {
+        EventLog.logToFile("master.log");
+        int port = 12345;
+        File outputDir = new File("processed_results");
+        File script = null;
+        List<File> images = new ArrayList<>();
+        String batch = "1";
+        MasterEngine.Priority priority = MasterEngine.Priority.NORMAL;
+        int minSlaves = 1;
+        boolean zeroCopy = false;
+        int compress = 0;
+        int metricsPort = -1;
+        MasterEngine.Transport transport = MasterEngine.Transport.BLOCKING;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--output" -> outputDir = new File(args[++i]);
+                case "--script" -> script = new File(args[++i]);
+                case "--batch" -> batch = args[++i];
+                case "--priority" -> priority = MasterEngine.Priority.valueOf(args[++i].toUpperCase());
+                case "--min-slaves" -> minSlaves = Integer.parseInt(args[++i]);
+                case "--zero-copy" -> zeroCopy = true;
+                case "--selector" -> transport = MasterEngine.Transport.SELECTOR;
+                case "--compress" -> compress = Integer.parseInt(args[++i]);
+                case "--metrics-port" -> metricsPort = Integer.parseInt(args[++i]);
+                case "--images" -> {
+                    while (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                        addImages(images, new File(args[++i]));
+                    }
+                }
+                default -> {
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+
+        CountDownLatch done = new CountDownLatch(1);
+        EventLog eventLog = new EventLog("master");
+        MasterEngine engine = new MasterEngine(outputDir, new MasterEngine.Listener() {
+            @Override
+            public void log(String message) {
+                eventLog.info(message);
+            }
+
+            @Override
+            public void log(EventLog.Level level, String message) {
+                eventLog.log(level, message);
+            }
+
+            @Override
+            public void jobCompleted(String jobId) {
+                done.countDown();
+            }
+        });
+        engine.setZeroCopy(zeroCopy);
+        engine.setTransport(transport);
+        engine.setCompressionLevel(compress);
+        engine.start(port);
+        eventLog.info("Listening on " + MasterEngine.getLocalIP() + ":" + port);
+        MetricsServer metricsServer = null;
+        if (metricsPort >= 0) {
+            metricsServer = new MetricsServer(engine.metrics(), metricsPort);
+            eventLog.info("Metrics at http://127.0.0.1:" + metricsServer.getPort() + "/metrics");
+        }
+
+        if (script == null) {
+            Thread.currentThread().join();
+        }
+        if (images.isEmpty()) {
+            System.err.println("No images given");
+            System.exit(2);
+        }
+
+        while (engine.getSlaveCount() < minSlaves) {
+            Thread.sleep(200);
+        }
+        engine.submitJob(script, images, MasterEngine.parseBatchSize(batch), priority);
+        done.await();
+
+        engine.stop();
+        engine.close();
+        if (metricsServer != null) metricsServer.close();
+        eventLog.close();
+        System.exit(0);
+    }
+
+    private static void addImages(List<File> images, File path) {
+        File[] children = path.listFiles(File::isFile);
+        if (children != null) {
+            Arrays.sort(children);
+            images.addAll(Arrays.asList(children));
+        } else {
+            images.add(path);
+        }
+    }
+}
@@ -0,0 +1,627 @@
+package org.example;
+
+import shared.FileTransfer;
+import shared.SlaveMetrics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking transport for slave connections. A few I/O threads each run a
+ * Selector over their share of the slaves. Incoming bytes are read into pooled
+ * direct buffers and decoded incrementally into calls on the connection's
+ * SlaveHandler; outgoing messages are queued by the handler and written by the
+ * I/O thread whenever the socket has room, file content straight from disk
+ * with FileChannel.transferTo. A connection with more than HIGH_WATER bytes
+ * queued makes its dispatcher wait until it has drained below LOW_WATER.
+ */
+class SelectorTransport implements Closeable {
+    static final int BUFFER_SIZE = 64 * 1024;
+    // Pooled buffers kept for reuse; more are allocated under load and dropped afterwards
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final long HIGH_WATER = 4L * 1024 * 1024;
+    private static final long LOW_WATER = 1024 * 1024;
+    // Largest single message; only a partial message this big needs a buffer beyond BUFFER_SIZE
+    private static final int MAX_MESSAGE = 1024 * 1024;
+    // How long close() lets connections finish writing what is queued
+    private static final long CLOSE_GRACE_MILLIS = 1000;
+    private static final int IO_THREADS = Math.min(4, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    // Queue entry that closes the connection once everything before it is written
+    private static final Object CLOSE = new Object();
+
+    private final Consumer<String> log;
+    private final IoThread[] ioThreads = new IoThread[IO_THREADS];
+    private final AtomicInteger nextThread = new AtomicInteger();
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    SelectorTransport(Consumer<String> log) throws IOException {
+        this.log = log;
+        for (int i = 0; i < ioThreads.length; i++) {
+            ioThreads[i] = new IoThread("master-io-" + i);
+        }
+    }
+
+    /**
+     * Takes over an accepted channel. Nothing is read from it until
+     * {@link Connection#start} names the handler to deliver messages to.
+     */
+    Connection open(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        IoThread io = ioThreads[Math.floorMod(nextThread.getAndIncrement(), ioThreads.length)];
+        return new Connection(channel, io);
+    }
+
+    @Override
+    public void close() {
+        for (IoThread io : ioThreads) {
+            io.shutdown();
+        }
+        for (IoThread io : ioThreads) {
+            try {
+                io.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (buffer.capacity() == BUFFER_SIZE && pooled.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            pool.offer(buffer);
+        } else if (buffer.capacity() == BUFFER_SIZE) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    private final class IoThread implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        // Connections whose registration or interest set must be updated on this thread
+        private final Queue<Connection> changes = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        IoThread(String name) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void schedule(Connection connection) {
+            changes.add(connection);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        public void run() {
+            long deadline = Long.MAX_VALUE;
+            try {
+                while (true) {
+                    if (!running) {
+                        if (deadline == Long.MAX_VALUE) {
+                            deadline = System.currentTimeMillis() + CLOSE_GRACE_MILLIS;
+                        }
+                        if (selector.keys().isEmpty() || System.currentTimeMillis() > deadline) break;
+                    }
+                    selector.select(running ? 0 : 50);
+
+                    Connection changed;
+                    while ((changed = changes.poll()) != null) {
+                        try {
+                            changed.updateInterest(selector);
+                        } catch (IOException | RuntimeException e) {
+                            changed.closeNow();
+                        }
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) connection.read();
+                            if (key.isValid() && key.isWritable()) connection.write();
+                        } catch (IOException | RuntimeException e) {
+                            connection.closeNow();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                log.accept("Selector failed: " + e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).closeNow();
+                }
+                Connection pending;
+                while ((pending = changes.poll()) != null) {
+                    pending.closeNow();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+
+    /**
+     * A frame of a file queued for sending. Frames of one file share its
+     * channel; the last one closes it.
+     */
+    private static final class Region {
+        final FileChannel file;
+        long position;
+        final long end;
+        final boolean last;
+
+        Region(FileChannel file, long position, long end, boolean last) {
+            this.file = file;
+            this.position = position;
+            this.end = end;
+            this.last = last;
+        }
+    }
+
+    /**
+     * One slave connection. The handler writes into {@link #output()}, which
+     * fills pooled buffers and queues them on flush; everything else runs on
+     * the connection's I/O thread.
+     */
+    final class Connection implements MasterEngine.SlaveLink {
+        private final SocketChannel channel;
+        private final IoThread io;
+        private final Queue<Object> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        private final ReentrantLock drainLock = new ReentrantLock();
+        private final Condition drained = drainLock.newCondition();
+        private final DataOutputStream output = new DataOutputStream(new QueueingStream());
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private volatile boolean aborted = false;
+        private volatile MasterEngine.SlaveHandler handler;
+        private volatile Decoder decoder;
+        private SelectionKey key;
+        // Held between reads only while it contains part of a message
+        private ByteBuffer readBuffer;
+
+        Connection(SocketChannel channel, IoThread io) {
+            this.channel = channel;
+            this.io = io;
+        }
+
+        void start(MasterEngine.SlaveHandler handler) {
+            this.handler = handler;
+            this.decoder = new Decoder(handler);
+            io.schedule(this);
+        }
+
+        public DataOutputStream output() {
+            return output;
+        }
+
+        public void sendFile(File file, int level) throws IOException {
+            if (level > 0) {
+                // Compressed content cannot be sent from the file; it is queued like any other output
+                FileTransfer.sendFile(output, file, file.getName(), level);
+                return;
+            }
+            FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long length = source.size();
+                output.writeUTF(file.getName());
+                output.writeLong(length);
+                output.writeByte(FileTransfer.RAW);
+                long crc = FileTransfer.checksum(source, length);
+
+                for (long position = 0; position < length; position += FileTransfer.ZERO_COPY_FRAME) {
+                    long end = Math.min(length, position + FileTransfer.ZERO_COPY_FRAME);
+                    output.writeInt((int) (end - position));
+                    output.flush();
+                    enqueue(new Region(source, position, end, end == length), end - position);
+                }
+                if (length == 0) source.close();
+                output.writeInt(0);
+                output.writeLong(crc);
+                FileTransfer.countSent(length, length, false);
+            } catch (IOException e) {
+                source.close();
+                throw e;
+            }
+        }
+
+        public void awaitWritable() throws InterruptedException {
+            if (queuedBytes.get() <= HIGH_WATER) return;
+            drainLock.lock();
+            try {
+                while (queuedBytes.get() > LOW_WATER && !closed.get()) {
+                    drained.await();
+                }
+            } finally {
+                drainLock.unlock();
+            }
+        }
+
+        /**
+         * Closes the connection once everything queued so far is written.
+         */
+        public void close() {
+            if (closed.get()) return;
+            outbound.add(CLOSE);
+            io.schedule(this);
+        }
+
+        /**
+         * Closes the connection on its I/O thread without writing what is
+         * still queued.
+         */
+        public void abort() {
+            aborted = true;
+            io.schedule(this);
+        }
+
+        private void enqueue(Object item, long bytes) {
+            queuedBytes.addAndGet(bytes);
+            outbound.add(item);
+            io.schedule(this);
+        }
+
+        void updateInterest(Selector selector) throws IOException {
+            // Not registered until start() has named the handler
+            if (closed.get() || decoder == null) return;
+            if (aborted) {
+                closeNow();
+                return;
+            }
+            if (key == null) {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            }
+            key.interestOps(outbound.isEmpty()
+                    ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void read() throws IOException {
+            ByteBuffer buffer = readBuffer != null ? readBuffer : acquireBuffer();
+            readBuffer = null;
+            int read;
+            try {
+                read = channel.read(buffer);
+            } catch (IOException e) {
+                releaseBuffer(buffer);
+                throw e;
+            }
+            if (read < 0) {
+                releaseBuffer(buffer);
+                throw new EOFException("Connection closed by slave");
+            }
+            if (read > 0) handler.onActivity();
+
+            buffer.flip();
+            try {
+                decoder.decode(buffer);
+            } catch (IOException | RuntimeException e) {
+                releaseBuffer(buffer);
+                throw e;
+            }
+            if (!buffer.hasRemaining()) {
+                releaseBuffer(buffer);
+                return;
+            }
+            buffer.compact();
+            if (!buffer.hasRemaining()) {
+                // A single message larger than the buffer
+                if (buffer.capacity() >= MAX_MESSAGE) {
+                    throw new IOException("Message from slave exceeds " + MAX_MESSAGE + " bytes");
+                }
+                ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                releaseBuffer(buffer);
+                buffer = larger;
+            }
+            readBuffer = buffer;
+        }
+
+        void write() throws IOException {
+            Object head;
+            while ((head = outbound.peek()) != null) {
+                if (head == CLOSE) {
+                    closeNow();
+                    return;
+                }
+                if (head instanceof ByteBuffer buffer) {
+                    int written = channel.write(buffer);
+                    drainedBytes(written);
+                    if (buffer.hasRemaining()) return;
+                    outbound.poll();
+                    releaseBuffer(buffer);
+                } else {
+                    Region region = (Region) head;
+                    long sent = region.file.transferTo(region.position, region.end - region.position, channel);
+                    region.position += sent;
+                    drainedBytes(sent);
+                    if (region.position < region.end) {
+                        if (sent == 0 && region.position >= region.file.size()) {
+                            throw new EOFException("File shrank while sending");
+                        }
+                        return;
+                    }
+                    outbound.poll();
+                    if (region.last) region.file.close();
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            if (!outbound.isEmpty()) {
+                // Queued after the loop saw an empty queue
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void drainedBytes(long bytes) {
+            long queued = queuedBytes.addAndGet(-bytes);
+            if (queued <= LOW_WATER && queued + bytes > LOW_WATER) {
+                signalDrained();
+            }
+        }
+
+        private void signalDrained() {
+            drainLock.lock();
+            try {
+                drained.signalAll();
+            } finally {
+                drainLock.unlock();
+            }
+        }
+
+        /**
+         * Closes the channel, drops whatever is still queued and tells the
+         * handler the slave is gone.
+         */
+        void closeNow() {
+            if (!closed.compareAndSet(false, true)) return;
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            Object item;
+            while ((item = outbound.poll()) != null) {
+                if (item instanceof ByteBuffer buffer) {
+                    releaseBuffer(buffer);
+                } else if (item instanceof Region region) {
+                    try {
+                        region.file.close();
+                    } catch (IOException e) {
+                        // Nothing left to release
+                    }
+                }
+            }
+            if (readBuffer != null) {
+                releaseBuffer(readBuffer);
+                readBuffer = null;
+            }
+            if (decoder != null) decoder.abort();
+            signalDrained();
+            if (handler != null) handler.connectionLost();
+        }
+
+        /**
+         * Collects what the handler writes into pooled buffers and queues
+         * them on flush. Only used under the handler's write lock.
+         */
+        private final class QueueingStream extends OutputStream {
+            private ByteBuffer current;
+
+            @Override
+            public void write(int b) {
+                if (current == null || !current.hasRemaining()) next();
+                current.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                while (len > 0) {
+                    if (current == null || !current.hasRemaining()) next();
+                    int n = Math.min(len, current.remaining());
+                    current.put(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (closed.get()) {
+                    throw new IOException("Connection closed");
+                }
+                if (current != null && current.position() > 0) {
+                    current.flip();
+                    enqueue(current, current.remaining());
+                    current = null;
+                }
+            }
+
+            private void next() {
+                if (current != null) {
+                    current.flip();
+                    enqueue(current, current.remaining());
+                }
+                current = acquireBuffer();
+            }
+        }
+    }
+
+    /**
+     * Decodes what a slave sends. Small messages are taken off the buffer only
+     * once complete; INVENTORY entries and RESULT content are consumed as they
+     * arrive, so neither has to fit in a buffer.
+     */
+    static final class Decoder {
+        // Thrown when the buffer ends inside the element being decoded
+        private static final BufferUnderflow UNDERFLOW = new BufferUnderflow();
+
+        private final MasterEngine.SlaveHandler handler;
+        private int inventoryRemaining = 0;
+        // Result being received and the task it answers
+        private FileTransfer.Receiver result;
+        private long resultTaskId;
+        private long resultStarted;
+        private long frameRemaining = 0;
+
+        Decoder(MasterEngine.SlaveHandler handler) {
+            this.handler = handler;
+        }
+
+        void decode(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                int start = buffer.position();
+                try {
+                    step(buffer);
+                } catch (BufferUnderflow e) {
+                    buffer.position(start);
+                    return;
+                }
+            }
+        }
+
+        private void step(ByteBuffer buffer) throws IOException {
+            if (inventoryRemaining > 0) {
+                String hash = readUTF(buffer);
+                inventoryRemaining--;
+                handler.onInventory(hash);
+                return;
+            }
+            if (result != null) {
+                readResultContent(buffer);
+                return;
+            }
+
+            String command = readUTF(buffer);
+            switch (command) {
+                case "HEARTBEAT" -> handler.onHeartbeat();
+                case "METRICS" -> handler.onMetrics(new SlaveMetrics(readInt(buffer), readInt(buffer),
+                        Double.longBitsToDouble(readLong(buffer)), readLong(buffer),
+                        Double.longBitsToDouble(readLong(buffer)), Double.longBitsToDouble(readLong(buffer))));
+                case "SLOTS" -> handler.onSlots(readInt(buffer));
+                case "INVENTORY" -> inventoryRemaining = readInt(buffer);
+                case "EVICTED" -> handler.onEvicted(readUTF(buffer));
+                case "MISSING" -> {
+                    String missingCommand = readUTF(buffer);
+                    String jobId = readUTF(buffer);
+                    long taskId = readLong(buffer);
+                    String hash = readUTF(buffer);
+                    handler.onMissing(missingCommand, jobId, taskId, hash);
+                }
+                case "READY" -> handler.onReady(readInt(buffer));
+                case "COMPRESSION" -> handler.onCompression(readInt(buffer));
+                case "RESULT" -> {
+                    long taskId = readLong(buffer);
+                    String name = readUTF(buffer);
+                    long length = readLong(buffer);
+                    byte codec = readByte(buffer);
+                    result = new FileTransfer.Receiver(handler.resultDir(taskId), name, length, codec);
+                    resultTaskId = taskId;
+                    resultStarted = System.nanoTime();
+                }
+                case "FAILED" -> {
+                    long taskId = readLong(buffer);
+                    String reason = readUTF(buffer);
+                    handler.onFailed(taskId, reason);
+                }
+                default -> throw new IOException("Unknown command from slave: " + command);
+            }
+        }
+
+        private void readResultContent(ByteBuffer buffer) throws IOException {
+            if (frameRemaining == 0) {
+                int frame = readInt(buffer);
+                if (frame > 0) {
+                    frameRemaining = frame;
+                    return;
+                }
+                long crc = readLong(buffer);
+                FileTransfer.Receiver finished = result;
+                result = null;
+                handler.onResult(resultTaskId, finished.finish(crc), System.nanoTime() - resultStarted);
+                return;
+            }
+
+            int length = (int) Math.min(frameRemaining, buffer.remaining());
+            ByteBuffer content = buffer.slice(buffer.position(), length);
+            result.write(content);
+            buffer.position(buffer.position() + length);
+            frameRemaining -= length;
+        }
+
+        void abort() {
+            if (result == null) return;
+            try {
+                result.close();
+            } catch (IOException e) {
+                // Partial file is deleted on a best effort basis
+            }
+            result = null;
+        }
+
+        private static byte readByte(ByteBuffer buffer) {
+            if (!buffer.hasRemaining()) throw UNDERFLOW;
+            return buffer.get();
+        }
+
+        private static int readInt(ByteBuffer buffer) {
+            if (buffer.remaining() < Integer.BYTES) throw UNDERFLOW;
+            return buffer.getInt();
+        }
+
+        private static long readLong(ByteBuffer buffer) {
+            if (buffer.remaining() < Long.BYTES) throw UNDERFLOW;
+            return buffer.getLong();
+        }
+
+        /**
+         * Reads a string in DataOutput.writeUTF format.
+         */
+        private static String readUTF(ByteBuffer buffer) throws IOException {
+            if (buffer.remaining() < 2) throw UNDERFLOW;
+            int length = Short.toUnsignedInt(buffer.getShort(buffer.position()));
+            if (buffer.remaining() < 2 + length) throw UNDERFLOW;
+            byte[] encoded = new byte[2 + length];
+            buffer.get(encoded);
+            return new DataInputStream(new ByteArrayInputStream(encoded)).readUTF();
+        }
+    }
+
+    private static final class BufferUnderflow extends RuntimeException {
+        BufferUnderflow() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -1,85 +1,80 @@
 package org.example;
 
-import java.io.*;
-import java.net.*;
-import java.util.Timer;
-import java.util.TimerTask;
+import shared.EventLog;
+import shared.MetricsServer;
+import slave.SlaveEngine;
 
-public class SlaveNode {
-    private static final String MASTER_IP = "localhost";
-    private static final int MASTER_PORT = 12346;
-
-    public static void main(String[] args) {
-        try{
-            Socket socket = new Socket(MASTER_IP, MASTER_PORT);
-
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-
-             // Get slave ID from master
-             String slaveId = (String) in.readObject();
-             System.out.println("Connected to master as: " + slaveId);
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
 
-             // Start heartbeat
-             new Timer().scheduleAtFixedRate(new TimerTask() {
-                 public void run() {
-                     try {
-                         out.writeObject("HEARTBEAT");
-                         out.flush();
-                     } catch (IOException e) {
-                         System.exit(0);
-                     }
-                 }
-             }, 0, 3000);
+/**
+ * Command line slave. Connects to a master and processes tasks until the
+ * connection ends.
+ *
+ * Usage: SlaveNode [--host h] [--port p] [--workers n] [--cache-mb n]
+ *                  [--work-dir dir] [--zero-copy] [--persistent] [--compress level]
+ *                  [--metrics-port p]
+ */
+public class SlaveNode {
+    public static void main(String[] args) throws Exception {
+        EventLog.logToFile("slave.log");
+        String host = "localhost";
+        int port = 12345;
+        int workers = Runtime.getRuntime().availableProcessors();
+        long cacheMb = 2048;
+        File workDir = new File(".");
+        boolean zeroCopy = false;
+        boolean persistent = false;
+        int compress = 0;
+        int metricsPort = -1;
 
-            // Process tasks
-            while (true) {
-                String command = (String) in.readObject();
-                if ("SCRIPT".equals(command)) {
-                    receiveFile("received_script.py", in);
-                }
-                else if ("IMAGE".equals(command)) {
-                    String imageName = (String) in.readObject();
-                    receiveFile(imageName, in);
-                    processImage(imageName, out);
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host" -> host = args[++i];
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--workers" -> workers = Integer.parseInt(args[++i]);
+                case "--cache-mb" -> cacheMb = Long.parseLong(args[++i]);
+                case "--work-dir" -> workDir = new File(args[++i]);
+                case "--zero-copy" -> zeroCopy = true;
+                case "--persistent" -> persistent = true;
+                case "--compress" -> compress = Integer.parseInt(args[++i]);
+                case "--metrics-port" -> metricsPort = Integer.parseInt(args[++i]);
+                default -> {
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(2);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-    }
 
-    private static void processImage(String imageName, ObjectOutputStream out) {
-        try {
-            ProcessBuilder pb = new ProcessBuilder("python", "received_script.py", imageName);
-            Process p = pb.start();
-            int exitCode = p.waitFor();
-
-            if (exitCode == 0) {
-                File resultFile = new File("bw_" + imageName);
-                sendResult(resultFile, out);
-            } else {
-                out.writeObject("ERROR processing " + imageName);
+        workDir.mkdirs();
+        CountDownLatch done = new CountDownLatch(1);
+        EventLog eventLog = new EventLog("slave");
+        SlaveEngine engine = new SlaveEngine(workDir, new SlaveEngine.Listener() {
+            @Override
+            public void log(String message) {
+                eventLog.info(message);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
 
-    private static void receiveFile(String fileName, ObjectInputStream in) throws IOException, ClassNotFoundException {
-        byte[] fileData = (byte[]) in.readObject();
-        FileOutputStream fos = new FileOutputStream(fileName);
-        fos.write(fileData);
-        fos.close();
-    }
+            @Override
+            public void log(EventLog.Level level, String message) {
+                eventLog.log(level, message);
+            }
 
-    private static void sendResult(File resultFile, ObjectOutputStream out) throws IOException {
-        out.writeObject(resultFile.getName());
-        FileInputStream fis = new FileInputStream(resultFile);
-        byte[] fileData = new byte[(int) resultFile.length()];
-        fis.read(fileData);
-        out.writeObject(fileData);
-        fis.close();
-        resultFile.delete();
+            @Override
+            public void disconnected() {
+                done.countDown();
+            }
+        });
+        engine.setZeroCopy(zeroCopy);
+        engine.setPersistentWorkers(persistent);
+        engine.setCompressionLevel(compress);
+        if (metricsPort >= 0) {
+            MetricsServer metricsServer = new MetricsServer(engine.metrics(), metricsPort);
+            eventLog.info("Metrics at http://127.0.0.1:" + metricsServer.getPort() + "/metrics");
+        }
+        engine.connect(host, port, workers, cacheMb * 1024 * 1024);
+        done.await();
+        eventLog.close();
+        System.exit(0);
     }
-}
\ No newline at end of file
+}
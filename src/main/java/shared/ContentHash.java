@@ -0,0 +1,57 @@
+package shared;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SHA-256 content hashes for files, remembered per path as long as the file's
+ * size and modification time do not change so re-runs do not re-read inputs.
+ */
+public final class ContentHash {
+    private static final Map<String, Entry> known = new ConcurrentHashMap<>();
+
+    private record Entry(long length, long lastModified, String hash) {
+    }
+
+    private ContentHash() {
+    }
+
+    public static String of(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        Entry entry = known.get(path);
+        if (entry != null && entry.length == length && entry.lastModified == lastModified) {
+            return entry.hash;
+        }
+
+        String hash = sha256(file);
+        known.put(path, new Entry(length, lastModified, hash));
+        return hash;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = newDigest();
+
+        byte[] buffer = new byte[FileTransfer.CHUNK_SIZE];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int read;
+            while ((read = fis.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,220 @@
+package shared;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous log for the engines' events. Callers never block: an event goes
+ * into a fixed-size ring and a single writer thread drains it at most every
+ * FLUSH_INTERVAL_MILLIS. Within one flush, events that differ only in their
+ * numbers (one line per image, retry counts) are folded into one entry with a
+ * repeat count; job, slave and content ids are kept, so events about different
+ * jobs or slaves stay apart. Each entry is written through SLF4J, configured by
+ * simplelogger.properties, and every flush reaches the views as a single batch.
+ *
+ * When the ring is full new events are dropped and reported as a count with
+ * the next flush.
+ */
+public class EventLog implements Closeable {
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final long FLUSH_INTERVAL_MILLIS = 100;
+    private static final String LOG_FILE_PROPERTY = "org.slf4j.simpleLogger.logFile";
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * One line of the log: the first of {@code repeats} similar events seen in
+     * the same flush.
+     */
+    public record Entry(long timeMillis, Level level, String message, int repeats) {
+        @Override
+        public String toString() {
+            return repeats > 1 ? message + " (+" + (repeats - 1) + " similar)" : message;
+        }
+    }
+
+    private record Event(long timeMillis, Level level, String message) {
+    }
+
+    private final Logger logger;
+    private final BlockingQueue<Event> ring;
+    private final AtomicLong dropped = new AtomicLong();
+    private final List<Consumer<List<Entry>>> views = new CopyOnWriteArrayList<>();
+    private final Thread writer;
+    private volatile Level level;
+    private volatile boolean closed = false;
+
+    /**
+     * Writes SLF4J's output to {@code fileName} unless a log file was given
+     * with -Dorg.slf4j.simpleLogger.logFile. Only takes effect before the
+     * first EventLog is created.
+     */
+    public static void logToFile(String fileName) {
+        if (System.getProperty(LOG_FILE_PROPERTY) == null) {
+            System.setProperty(LOG_FILE_PROPERTY, fileName);
+        }
+    }
+
+    public EventLog(String name) {
+        this(name, DEFAULT_CAPACITY);
+    }
+
+    public EventLog(String name, int capacity) {
+        this.logger = LoggerFactory.getLogger(name);
+        this.ring = new ArrayBlockingQueue<>(capacity);
+        this.level = logger.isDebugEnabled() ? Level.DEBUG : Level.INFO;
+        this.writer = new Thread(this::writeLoop, "event-log-" + name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Events below this level are discarded where they are logged.
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * Registers a consumer for every flush, called on the writer thread.
+     */
+    public void addView(Consumer<List<Entry>> view) {
+        views.add(view);
+    }
+
+    public void log(Level level, String message) {
+        if (level.compareTo(this.level) < 0 || closed) return;
+        if (!ring.offer(new Event(System.currentTimeMillis(), level, message))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message);
+    }
+
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(ring.take());
+                ring.drainTo(batch);
+                flush(batch);
+                batch.clear();
+                // Bounds the flush rate, and gives repeats time to gather
+                Thread.sleep(FLUSH_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            ring.drainTo(batch);
+            flush(batch);
+        }
+    }
+
+    private void flush(List<Event> batch) {
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        for (Event event : batch) {
+            entries.merge(event.level() + " " + template(event.message()),
+                    new Entry(event.timeMillis(), event.level(), event.message(), 1),
+                    (first, next) -> new Entry(first.timeMillis(), first.level(), first.message(), first.repeats() + 1));
+        }
+        List<Entry> flushed = new ArrayList<>(entries.values());
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            flushed.add(new Entry(System.currentTimeMillis(), Level.WARN,
+                    "Dropped " + lost + " log event(s); logging could not keep up", 1));
+        }
+        if (flushed.isEmpty()) return;
+
+        for (Entry entry : flushed) {
+            switch (entry.level()) {
+                case DEBUG -> logger.debug(entry.toString());
+                case INFO -> logger.info(entry.toString());
+                case WARN -> logger.warn(entry.toString());
+                case ERROR -> logger.error(entry.toString());
+            }
+        }
+        for (Consumer<List<Entry>> view : views) {
+            view.accept(flushed);
+        }
+    }
+
+    /**
+     * The message with every word that contains a digit replaced, so events
+     * about different files or counts compare equal. Ids are left as they are.
+     */
+    static String template(String message) {
+        StringBuilder template = new StringBuilder(message.length());
+        int start = 0;
+        while (start < message.length()) {
+            int end = message.indexOf(' ', start);
+            if (end < 0) end = message.length();
+            boolean hasDigit = false;
+            for (int i = start; i < end && !hasDigit; i++) {
+                hasDigit = Character.isDigit(message.charAt(i));
+            }
+            template.append(hasDigit && !isId(message, start, end) ? "#" : message.substring(start, end));
+            if (end < message.length()) template.append(' ');
+            start = end + 1;
+        }
+        return template.toString();
+    }
+
+    /**
+     * True for a UUID or hex hash, possibly followed by punctuation: at least
+     * 8 hex digits and dashes with at least one letter among them, which
+     * counts and sizes never have.
+     */
+    private static boolean isId(String message, int start, int end) {
+        while (end > start && ":,.;)".indexOf(message.charAt(end - 1)) >= 0) end--;
+        if (end - start < 8) return false;
+        boolean hasLetter = false;
+        for (int i = start; i < end; i++) {
+            char c = Character.toLowerCase(message.charAt(i));
+            if (c >= 'a' && c <= 'f') {
+                hasLetter = true;
+            } else if (c != '-' && !Character.isDigit(c)) {
+                return false;
+            }
+        }
+        return hasLetter;
+    }
+
+    /**
+     * Writes out what is queued and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,731 @@
+package shared;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Framed binary file transfer used between master and slaves.
+ *
+ * A transfer is written as: file name (UTF), total length (long), codec
+ * (byte), a sequence of chunks each prefixed by its length (int), a
+ * zero-length terminator chunk and finally the CRC32 of the content (long).
+ * Files are streamed straight from disk to the socket and back, so heap use
+ * per transfer is bounded by CHUNK_SIZE. Raw files of MAPPED_THRESHOLD bytes
+ * and more can be sent from memory mappings into a socket channel instead
+ * (see {@link #sendMapped}).
+ *
+ * With codec DEFLATED the chunks carry one Deflate stream of the content
+ * instead of the content itself; length and CRC still describe the original.
+ * Senders pick it per transfer at the level both peers agreed on, and skip it
+ * for content that would not shrink (see {@link #compressionLevel}).
+ *
+ * Receivers write into a hidden part file next to the target and rename it
+ * into place only once length and CRC match, so a reader never sees a partial
+ * or corrupt file under the real name.
+ *
+ * The zero-copy variants produce the same framing but move the content with
+ * FileChannel.transferTo/transferFrom, so either side can pick its mode alone.
+ * Receiving that way needs a {@link SocketInput}, which hands over the bytes
+ * it already buffered and then leaves the rest to the socket channel.
+ * Senders do not flush the trailer; callers flush once everything they want on
+ * the wire is written, so a batch of small files shares one flush.
+ */
+public final class FileTransfer {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int ZERO_COPY_FRAME = 8 * 1024 * 1024;
+    // Raw files from this size on are worth sending from memory mappings
+    public static final long MAPPED_THRESHOLD = 4L * 1024 * 1024;
+    public static final byte RAW = 0;
+    public static final byte DEFLATED = 1;
+    // Files this small gain too little to be worth a Deflate stream
+    private static final long MIN_COMPRESS_BYTES = 4 * 1024;
+    // Leading bytes compressed at the fastest level to judge a file, and the
+    // ratio it must beat to be sent compressed
+    private static final int SAMPLE_BYTES = 64 * 1024;
+    private static final double MIN_SAMPLE_SAVING = 0.1;
+    private static final Set<String> COMPRESSED_FORMATS = Set.of(
+            "png", "jpg", "jpeg", "gif", "webp", "avif", "heic", "jp2",
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "mp3", "mp4", "mkv", "webm");
+
+    private static final AtomicLong contentBytes = new AtomicLong();
+    private static final AtomicLong wireBytes = new AtomicLong();
+    private static final AtomicLong compressedTransfers = new AtomicLong();
+    private static final AtomicLong rawTransfers = new AtomicLong();
+
+    private FileTransfer() {
+    }
+
+    /**
+     * Totals over every transfer this process has sent.
+     */
+    public record Stats(long contentBytes, long wireBytes, long compressedTransfers, long rawTransfers) {
+        public long savedBytes() {
+            return contentBytes - wireBytes;
+        }
+
+        public Stats minus(Stats earlier) {
+            return new Stats(contentBytes - earlier.contentBytes, wireBytes - earlier.wireBytes,
+                    compressedTransfers - earlier.compressedTransfers, rawTransfers - earlier.rawTransfers);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d of %d transfer(s) compressed, %.1f MB sent as %.1f MB (%.1f%% saved)",
+                    compressedTransfers, compressedTransfers + rawTransfers, contentBytes / 1048576.0,
+                    wireBytes / 1048576.0, contentBytes == 0 ? 0.0 : savedBytes() * 100.0 / contentBytes);
+        }
+    }
+
+    public static Stats stats() {
+        return new Stats(contentBytes.get(), wireBytes.get(), compressedTransfers.get(), rawTransfers.get());
+    }
+
+    /**
+     * Level to send the file at given the level both peers agreed on: 0 for
+     * known compressed formats, small files, and files whose first
+     * SAMPLE_BYTES do not shrink by MIN_SAMPLE_SAVING at the fastest level.
+     */
+    public static int compressionLevel(File file, int agreedLevel) throws IOException {
+        if (agreedLevel <= 0 || file.length() < MIN_COMPRESS_BYTES) return 0;
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_FORMATS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return 0;
+        }
+
+        byte[] sample = new byte[(int) Math.min(SAMPLE_BYTES, file.length())];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int read = fis.readNBytes(sample, 0, sample.length);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(sample, 0, read);
+                deflater.finish();
+                byte[] out = new byte[CHUNK_SIZE];
+                long compressed = 0;
+                while (!deflater.finished()) {
+                    compressed += deflater.deflate(out);
+                }
+                return compressed < read * (1 - MIN_SAMPLE_SAVING) ? agreedLevel : 0;
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    public static void sendFile(DataOutputStream out, File file) throws IOException {
+        sendFile(out, file, file.getName());
+    }
+
+    public static void sendFile(DataOutputStream out, File file, String name) throws IOException {
+        sendFile(out, file, name, 0);
+    }
+
+    /**
+     * Sends the file Deflate compressed at {@code level}, or raw when it is 0.
+     * The caller decides the level, usually through {@link #compressionLevel}.
+     */
+    public static void sendFile(DataOutputStream out, File file, String name, int level) throws IOException {
+        if (level > 0) {
+            sendDeflated(out, file, name, level);
+            return;
+        }
+        long length = file.length();
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[CHUNK_SIZE];
+
+        out.writeUTF(name);
+        out.writeLong(length);
+        out.writeByte(RAW);
+        try (FileInputStream fis = new FileInputStream(file)) {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("File shrank while sending: " + file.getName());
+                }
+                out.writeInt(read);
+                out.write(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        out.writeInt(0);
+        out.writeLong(crc.getValue());
+        countSent(length, length, false);
+    }
+
+    /**
+     * Sends the file raw from memory mappings, so its pages are read by the OS
+     * on demand and written from the page cache straight into {@code channel};
+     * the content never enters the heap. The CRC is computed from the same
+     * mappings. Each frame is mapped on its own and the mapping dropped once
+     * written, so no more than one frame is mapped per transfer at a time. The
+     * JDK only unmaps a dropped mapping when it is garbage collected, though,
+     * so address space (not memory, as the pages stay reclaimable) can pile up
+     * between collections. Without a channel the file is sent like
+     * {@link #sendFile(DataOutputStream, File)}.
+     */
+    public static void sendMapped(DataOutputStream out, WritableByteChannel channel, File file) throws IOException {
+        if (channel == null) {
+            sendFile(out, file, file.getName(), 0);
+            return;
+        }
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = source.size();
+            CRC32 crc = new CRC32();
+
+            out.writeUTF(file.getName());
+            out.writeLong(length);
+            out.writeByte(RAW);
+            for (long position = 0; position < length; position += ZERO_COPY_FRAME) {
+                int frame = (int) Math.min(ZERO_COPY_FRAME, length - position);
+                out.writeInt(frame);
+                out.flush();
+                MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY, position, frame);
+                crc.update(mapped.duplicate());
+                while (mapped.hasRemaining()) {
+                    channel.write(mapped);
+                }
+            }
+            out.writeInt(0);
+            out.writeLong(crc.getValue());
+            countSent(length, length, false);
+        }
+    }
+
+    private static void sendDeflated(DataOutputStream out, File file, String name, int level) throws IOException {
+        long length = file.length();
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[CHUNK_SIZE];
+
+        out.writeUTF(name);
+        out.writeLong(length);
+        out.writeByte(DEFLATED);
+        FrameOutputStream frames = new FrameOutputStream(out);
+        Deflater deflater = new Deflater(level);
+        try (FileInputStream fis = new FileInputStream(file)) {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(frames, deflater, CHUNK_SIZE);
+            long remaining = length;
+            while (remaining > 0) {
+                int read = fis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("File shrank while sending: " + file.getName());
+                }
+                deflated.write(buffer, 0, read);
+                crc.update(buffer, 0, read);
+                remaining -= read;
+            }
+            // Ends the Deflate stream without closing the socket underneath
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+        out.writeInt(0);
+        out.writeLong(crc.getValue());
+        countSent(length, frames.written, true);
+    }
+
+    /**
+     * Adds a sent transfer to {@link #stats()}, for senders that write the
+     * framing themselves.
+     */
+    public static void countSent(long content, long wire, boolean compressed) {
+        contentBytes.addAndGet(content);
+        wireBytes.addAndGet(wire);
+        (compressed ? compressedTransfers : rawTransfers).incrementAndGet();
+    }
+
+    /**
+     * Sends the file with FileChannel.transferTo into the socket channel so the
+     * content never passes through the Java heap. Falls back to the buffered
+     * path when the socket has no channel.
+     */
+    public static void sendFile(DataOutputStream out, WritableByteChannel channel, File file) throws IOException {
+        sendFile(out, channel, file, 0);
+    }
+
+    /**
+     * Zero-copy send as above, or a compressed one when {@code level} is above
+     * 0; compressed content has to pass through the heap.
+     */
+    public static void sendFile(DataOutputStream out, WritableByteChannel channel, File file, int level)
+            throws IOException {
+        if (channel == null || level > 0) {
+            sendFile(out, file, file.getName(), level);
+            return;
+        }
+
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = source.size();
+            out.writeUTF(file.getName());
+            out.writeLong(length);
+            out.writeByte(RAW);
+
+            long position = 0;
+            while (position < length) {
+                int frame = (int) Math.min(ZERO_COPY_FRAME, length - position);
+                out.writeInt(frame);
+                out.flush();
+                long end = position + frame;
+                while (position < end) {
+                    long sent = source.transferTo(position, end - position, channel);
+                    if (sent <= 0 && position >= source.size()) {
+                        throw new EOFException("File shrank while sending: " + file.getName());
+                    }
+                    position += sent;
+                }
+            }
+            out.writeInt(0);
+            out.writeLong(checksum(source, length));
+            countSent(length, length, false);
+        }
+    }
+
+    /**
+     * Writes every block it is given as one chunk of the framing.
+     */
+    private static final class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private long written = 0;
+
+        FrameOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            out.writeInt(len);
+            out.write(b, off, len);
+            written += len;
+        }
+    }
+
+    /**
+     * Reads the chunks of one transfer as a single stream that ends at the
+     * terminator chunk.
+     */
+    private static final class FrameInputStream extends InputStream {
+        private final DataInputStream in;
+        private int frameRemaining = 0;
+        private boolean ended = false;
+
+        FrameInputStream(DataInputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (frameRemaining == 0) {
+                if (ended) return -1;
+                int frame = in.readInt();
+                if (frame < 0) throw new IOException("Malformed chunk");
+                if (frame == 0) ended = true;
+                frameRemaining = frame;
+            }
+            int read = in.read(b, off, Math.min(len, frameRemaining));
+            if (read < 0) throw new EOFException("Connection closed inside a chunk");
+            frameRemaining -= read;
+            return read;
+        }
+
+        /**
+         * Skips to the terminator, past anything the decompressor left unread.
+         */
+        void drain() throws IOException {
+            byte[] skip = new byte[CHUNK_SIZE];
+            while (read(skip, 0, skip.length) >= 0) {
+                // Discard
+            }
+        }
+    }
+
+    /**
+     * Computes the CRC32 of the first {@code length} bytes through memory
+     * mappings of a frame each, so the content is read from the page cache
+     * without heap copies. As with {@link #sendMapped}, the mappings are only
+     * released once garbage collected.
+     */
+    public static long checksum(FileChannel channel, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long position = 0; position < length; position += ZERO_COPY_FRAME) {
+            long size = Math.min(ZERO_COPY_FRAME, length - position);
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Receives a file written by {@link #sendFile} into the given directory and
+     * returns it. The sender's name is reduced to its last path element so a
+     * peer cannot write outside of {@code dir}. A checksum or length mismatch
+     * deletes the partial file and throws, leaving any earlier file of the same
+     * name untouched.
+     */
+    public static File receiveFile(DataInputStream in, File dir) throws IOException {
+        return receiveFile(in, dir, false);
+    }
+
+    /**
+     * Same as {@link #receiveFile(DataInputStream, File)}; with {@code zeroCopy}
+     * and a {@link SocketInput} over a socket channel, the frames are written
+     * with FileChannel.transferFrom from that channel instead of through a heap
+     * buffer, and the CRC is computed afterwards from the written file. Any
+     * other stream is read through a heap buffer as usual.
+     */
+    public static File receiveFile(DataInputStream in, File dir, boolean zeroCopy) throws IOException {
+        return receiveFile(in, name -> dir, zeroCopy);
+    }
+
+    /**
+     * Same as {@link #receiveFile(DataInputStream, File, boolean)} with the
+     * directory chosen by the received file name.
+     */
+    public static File receiveFile(DataInputStream in, Function<String, File> dirFor, boolean zeroCopy)
+            throws IOException {
+        String name = new File(in.readUTF()).getName();
+        long length = in.readLong();
+        byte codec = in.readByte();
+        File target = new File(dirFor.apply(name), name);
+        if (codec == DEFLATED) {
+            return receiveDeflated(in, target, length);
+        }
+        if (codec != RAW) {
+            throw new IOException("Unknown codec " + codec + " for " + name);
+        }
+        File part = partFile(target);
+        CRC32 crc = new CRC32();
+        long received = 0;
+        SocketInput socketIn = zeroCopy && in instanceof SocketInput input && input.channel != null ? input : null;
+
+        try (FileChannel sink = FileChannel.open(part.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            byte[] buffer = socketIn != null ? null : new byte[CHUNK_SIZE];
+            OutputStream fos = socketIn != null ? null : Channels.newOutputStream(sink);
+            int frame;
+            while ((frame = in.readInt()) > 0) {
+                if (received + frame > length) {
+                    throw new IOException("Malformed chunk for " + name);
+                }
+                if (socketIn != null) {
+                    long end = received + frame;
+                    received += socketIn.buffer.drainTo(sink, received, frame);
+                    while (received < end) {
+                        // A chunk at a time, so a slow link still reports progress often
+                        long written = sink.transferFrom(socketIn.channel, received,
+                                Math.min(end - received, CHUNK_SIZE));
+                        if (written <= 0) {
+                            throw new EOFException("Connection closed while receiving " + name);
+                        }
+                        socketIn.buffer.onRead.run();
+                        received += written;
+                    }
+                } else {
+                    int remaining = frame;
+                    while (remaining > 0) {
+                        int chunk = Math.min(remaining, buffer.length);
+                        in.readFully(buffer, 0, chunk);
+                        fos.write(buffer, 0, chunk);
+                        crc.update(buffer, 0, chunk);
+                        remaining -= chunk;
+                    }
+                    received += frame;
+                }
+            }
+            long expected = in.readLong();
+            if (received != length
+                    || expected != (socketIn != null ? checksum(sink, received) : crc.getValue())) {
+                throw new IOException("Checksum mismatch for " + name);
+            }
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        }
+        return commit(part, target);
+    }
+
+    /**
+     * Buffered input from a socket for {@link #receiveFile}: zero-copy
+     * receives take the bytes it has already buffered and then read the rest
+     * of a frame from the socket channel directly. Without a channel it is an
+     * ordinary buffered stream. {@code onRead} runs whenever bytes came off the
+     * socket, also in the middle of a message, for callers that watch whether
+     * the peer is still alive.
+     */
+    public static final class SocketInput extends DataInputStream {
+        private final Buffer buffer;
+        private final ReadableByteChannel channel;
+
+        public SocketInput(Socket socket, int bufferSize) throws IOException {
+            this(socket, bufferSize, () -> { });
+        }
+
+        public SocketInput(Socket socket, int bufferSize, Runnable onRead) throws IOException {
+            this(new Buffer(socket.getInputStream(), bufferSize, onRead), socket.getChannel());
+        }
+
+        private SocketInput(Buffer buffer, ReadableByteChannel channel) {
+            super(buffer);
+            this.buffer = buffer;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Read buffer of a {@link SocketInput}. Unlike BufferedInputStream it takes
+     * no monitor, which would pin a virtual thread to its carrier for as long as
+     * a read blocks; each connection has a single reader anyway.
+     */
+    private static final class Buffer extends InputStream {
+        private final InputStream in;
+        private final byte[] buf;
+        private final Runnable onRead;
+        private int pos = 0;
+        private int count = 0;
+
+        Buffer(InputStream in, int size, Runnable onRead) {
+            this.in = in;
+            this.buf = new byte[size];
+            this.onRead = onRead;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == count && !fill()) return -1;
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (pos == count) {
+                // Large reads skip the buffer
+                if (len >= buf.length) {
+                    int read = in.read(b, off, len);
+                    if (read > 0) onRead.run();
+                    return read;
+                }
+                if (!fill()) return -1;
+            }
+            int n = Math.min(len, count - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return count - pos + in.available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private boolean fill() throws IOException {
+            int n = in.read(buf, 0, buf.length);
+            if (n <= 0) return false;
+            onRead.run();
+            pos = 0;
+            count = n;
+            return true;
+        }
+
+        /**
+         * Writes up to {@code max} already buffered bytes to {@code sink} at
+         * {@code position}, without reading from the socket. Returns how many.
+         */
+        int drainTo(FileChannel sink, long position, int max) throws IOException {
+            int n = Math.min(count - pos, max);
+            if (n <= 0) return 0;
+            ByteBuffer buffered = ByteBuffer.wrap(buf, pos, n);
+            while (buffered.hasRemaining()) {
+                sink.write(buffered, position + buffered.position() - pos);
+            }
+            pos += n;
+            return n;
+        }
+    }
+
+    private static File receiveDeflated(DataInputStream in, File target, long length) throws IOException {
+        String name = target.getName();
+        File part = partFile(target);
+        CRC32 crc = new CRC32();
+        long received = 0;
+        FrameInputStream frames = new FrameInputStream(in);
+        Inflater inflater = new Inflater();
+        try (OutputStream fos = new FileOutputStream(part)) {
+            InflaterInputStream inflated = new InflaterInputStream(frames, inflater, CHUNK_SIZE);
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = inflated.read(buffer)) > 0) {
+                received += read;
+                if (received > length) {
+                    throw new IOException("Malformed chunk for " + name);
+                }
+                fos.write(buffer, 0, read);
+                crc.update(buffer, 0, read);
+            }
+            frames.drain();
+            long expected = in.readLong();
+            if (received != length || expected != crc.getValue()) {
+                throw new IOException("Checksum mismatch for " + name);
+            }
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        } finally {
+            inflater.end();
+        }
+        return commit(part, target);
+    }
+
+    /**
+     * Creates the hidden file a transfer to {@code target} is written to.
+     */
+    private static File partFile(File target) throws IOException {
+        return Files.createTempFile(target.getParentFile().toPath(), "." + target.getName() + ".", ".part").toFile();
+    }
+
+    /**
+     * Renames a verified part file to its target in one step. This replaces
+     * the directory entry rather than the content of an older file, which may
+     * be hard linked elsewhere.
+     */
+    private static File commit(File part, File target) throws IOException {
+        try {
+            Files.move(part.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            part.delete();
+            throw e;
+        }
+        return target;
+    }
+
+    /**
+     * Receiving side of a transfer for callers that parse the framing
+     * themselves, such as a non-blocking reader: content is written to a part
+     * file as it arrives and renamed into place once it matches the trailer in
+     * {@link #finish}. Closing an unfinished receiver deletes the part file.
+     */
+    public static final class Receiver implements Closeable {
+        private final String name;
+        private final long length;
+        private final File target;
+        private final File part;
+        private final FileChannel sink;
+        private final CRC32 crc = new CRC32();
+        // Only for DEFLATED transfers
+        private final Inflater inflater;
+        private final ByteBuffer inflated;
+        private long received = 0;
+        private boolean finished = false;
+
+        public Receiver(File dir, String sentName, long length, byte codec) throws IOException {
+            this.name = new File(sentName).getName();
+            if (codec != RAW && codec != DEFLATED) {
+                throw new IOException("Unknown codec " + codec + " for " + name);
+            }
+            this.length = length;
+            this.target = new File(dir, name);
+            this.part = partFile(target);
+            this.sink = FileChannel.open(part.toPath(), StandardOpenOption.WRITE);
+            this.inflater = codec == DEFLATED ? new Inflater() : null;
+            this.inflated = codec == DEFLATED ? ByteBuffer.allocate(CHUNK_SIZE) : null;
+        }
+
+        /**
+         * Consumes all remaining bytes of {@code content}, which must lie within
+         * a frame announced by the sender.
+         */
+        public void write(ByteBuffer content) throws IOException {
+            if (inflater != null) {
+                inflate(content);
+                return;
+            }
+            if (received + content.remaining() > length) {
+                throw new IOException("Malformed chunk for " + name);
+            }
+            crc.update(content.duplicate());
+            while (content.hasRemaining()) {
+                received += sink.write(content);
+            }
+        }
+
+        private void inflate(ByteBuffer content) throws IOException {
+            inflater.setInput(content);
+            try {
+                while (true) {
+                    int produced = inflater.inflate(inflated);
+                    if (produced == 0) {
+                        if (inflater.finished() || inflater.needsInput()) break;
+                        throw new IOException("Unsupported compressed content for " + name);
+                    }
+                    received += produced;
+                    if (received > length) {
+                        throw new IOException("Malformed chunk for " + name);
+                    }
+                    inflated.flip();
+                    crc.update(inflated.duplicate());
+                    while (inflated.hasRemaining()) {
+                        sink.write(inflated);
+                    }
+                    inflated.clear();
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed content for " + name, e);
+            }
+            // Anything after the end of the Deflate stream is ignored
+            content.position(content.limit());
+        }
+
+        public File finish(long expectedCrc) throws IOException {
+            finished = received == length && expectedCrc == crc.getValue();
+            close();
+            if (!finished) {
+                throw new IOException("Checksum mismatch for " + name);
+            }
+            return commit(part, target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!sink.isOpen()) return;
+            sink.close();
+            if (inflater != null) inflater.end();
+            if (!finished) {
+                part.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package shared;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values in
+ * microseconds are counted in buckets that keep the top SUB_BUCKET_BITS + 1
+ * bits of the value, so any percentile is within about 3% of the true value
+ * from a microsecond up to days, in a fixed 15 KB of counters.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below 2 * SUB_BUCKETS have a bucket each; every doubling above adds SUB_BUCKETS
+    private static final int BUCKETS = (62 - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * Percentiles of the values recorded so far, in milliseconds.
+     */
+    public record Snapshot(long count, double meanMillis, double p50Millis, double p90Millis,
+                           double p99Millis, double maxMillis) {
+    }
+
+    public void record(long micros) {
+        // Clamped so the upper bound of every bucket in use fits in a long
+        long value = Math.min(Math.max(0, micros), Long.MAX_VALUE >>> 2);
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        totalMicros.addAndGet(value);
+        maxMicros.accumulateAndGet(value, Math::max);
+    }
+
+    public void recordNanos(long nanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Records the time elapsed since a {@link System#nanoTime()} reading.
+     */
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long totalMicros() {
+        return totalMicros.get();
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        if (total == 0) {
+            return new Snapshot(0, 0, 0, 0, 0, 0);
+        }
+        return new Snapshot(total, totalMicros.get() / 1000.0 / count.get(),
+                percentile(copy, total, 0.50), percentile(copy, total, 0.90),
+                percentile(copy, total, 0.99), maxMicros.get() / 1000.0);
+    }
+
+    private static double percentile(long[] counts, long total, double fraction) {
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (lowestOf(i) + lowestOf(i + 1) - 1) / 2000.0;
+            }
+        }
+        return lowestOf(counts.length - 1) / 1000.0;
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Smallest value counted in the given bucket.
+     */
+    static long lowestOf(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (index - shift * SUB_BUCKETS) << shift;
+    }
+}
@@ -0,0 +1,50 @@
+package shared;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Scrolling view of an {@link EventLog} that keeps only the newest MAX_LINES
+ * lines. Each flush of the log is appended in one event dispatch task, so a
+ * burst of events costs the UI one repaint rather than one per line.
+ */
+public class LogPanel extends JScrollPane implements Consumer<List<EventLog.Entry>> {
+    private static final int MAX_LINES = 5000;
+
+    private final JTextArea area = new JTextArea();
+    private final String prefix;
+
+    public LogPanel(String prefix) {
+        this.prefix = prefix;
+        area.setEditable(false);
+        setViewportView(area);
+    }
+
+    @Override
+    public void accept(List<EventLog.Entry> entries) {
+        StringBuilder text = new StringBuilder();
+        for (EventLog.Entry entry : entries) {
+            text.append(prefix);
+            if (entry.level() != EventLog.Level.INFO) {
+                text.append(entry.level()).append(' ');
+            }
+            text.append(entry).append('\n');
+        }
+        SwingUtilities.invokeLater(() -> append(text.toString()));
+    }
+
+    private void append(String text) {
+        area.append(text);
+        int excess = area.getLineCount() - 1 - MAX_LINES;
+        if (excess > 0) {
+            try {
+                area.getDocument().remove(0, area.getLineStartOffset(excess));
+            } catch (BadLocationException e) {
+                // Offsets come from the document itself
+            }
+        }
+        area.setCaretPosition(area.getDocument().getLength());
+    }
+}
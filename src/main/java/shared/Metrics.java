@@ -0,0 +1,118 @@
+package shared;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Named counters, gauges and latency histograms of one engine. Names are
+ * dotted paths; those of a single slave or job share the prefix
+ * {@code slave.<id>.} or {@code job.<id>.} and are dropped together once it
+ * is gone. Recording never blocks, and a snapshot can be taken at any time.
+ */
+public class Metrics {
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, DoubleSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    /**
+     * Every metric at one point in time, sorted by name.
+     */
+    public record Snapshot(long timeMillis, Map<String, Long> counters, Map<String, Double> gauges,
+                           Map<String, LatencyHistogram.Snapshot> histograms) {
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\"time\":").append(timeMillis);
+            json.append(",\"counters\":{");
+            String separator = "";
+            for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                json.append(separator).append(quote(counter.getKey())).append(':').append(counter.getValue());
+                separator = ",";
+            }
+            json.append("},\"gauges\":{");
+            separator = "";
+            for (Map.Entry<String, Double> gauge : gauges.entrySet()) {
+                json.append(separator).append(quote(gauge.getKey())).append(':').append(number(gauge.getValue()));
+                separator = ",";
+            }
+            json.append("},\"histograms\":{");
+            separator = "";
+            for (Map.Entry<String, LatencyHistogram.Snapshot> entry : histograms.entrySet()) {
+                LatencyHistogram.Snapshot histogram = entry.getValue();
+                json.append(separator).append(quote(entry.getKey()))
+                        .append(":{\"count\":").append(histogram.count())
+                        .append(",\"mean_ms\":").append(number(histogram.meanMillis()))
+                        .append(",\"p50_ms\":").append(number(histogram.p50Millis()))
+                        .append(",\"p90_ms\":").append(number(histogram.p90Millis()))
+                        .append(",\"p99_ms\":").append(number(histogram.p99Millis()))
+                        .append(",\"max_ms\":").append(number(histogram.maxMillis()))
+                        .append('}');
+                separator = ",";
+            }
+            return json.append("}}").toString();
+        }
+
+        private static String number(double value) {
+            return Double.isFinite(value) ? String.valueOf(value) : "null";
+        }
+
+        private static String quote(String text) {
+            StringBuilder quoted = new StringBuilder("\"");
+            for (char c : text.toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    quoted.append('\\').append(c);
+                } else if (c < 0x20) {
+                    quoted.append(String.format("\\u%04x", (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+            return quoted.append('"').toString();
+        }
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public void increment(String name) {
+        counter(name).increment();
+    }
+
+    public void add(String name, long amount) {
+        counter(name).add(amount);
+    }
+
+    /**
+     * Registers a value read whenever a snapshot is taken, replacing any
+     * gauge of the same name.
+     */
+    public void gauge(String name, DoubleSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Drops every metric whose name starts with the prefix.
+     */
+    public void remove(String prefix) {
+        counters.keySet().removeIf(name -> name.startsWith(prefix));
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+        histograms.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> counterValues = new TreeMap<>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        Map<String, Double> gaugeValues = new TreeMap<>();
+        gauges.forEach((name, gauge) -> gaugeValues.put(name, gauge.getAsDouble()));
+        Map<String, LatencyHistogram.Snapshot> histogramValues = new TreeMap<>();
+        histograms.forEach((name, histogram) -> histogramValues.put(name, histogram.snapshot()));
+        return new Snapshot(System.currentTimeMillis(), counterValues, gaugeValues, histogramValues);
+    }
+}
@@ -0,0 +1,79 @@
+package shared;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.util.Map;
+
+/**
+ * Live view of a {@link Metrics} registry, refreshed every REFRESH_MILLIS
+ * while shown: counters with their rate since the previous refresh, gauges,
+ * and the latency percentiles of every histogram.
+ */
+public class MetricsPanel extends JPanel {
+    private static final int REFRESH_MILLIS = 1000;
+
+    private final Metrics metrics;
+    private final DefaultTableModel values = readOnlyModel("Metric", "Value", "Per second");
+    private final DefaultTableModel latencies = readOnlyModel("Stage", "Count", "Mean ms", "p50 ms",
+            "p90 ms", "p99 ms", "Max ms");
+    private final Timer timer = new Timer(REFRESH_MILLIS, e -> refresh());
+    private Metrics.Snapshot previous;
+
+    public MetricsPanel(Metrics metrics) {
+        super(new GridLayout(2, 1));
+        this.metrics = metrics;
+        add(new JScrollPane(new JTable(values)));
+        add(new JScrollPane(new JTable(latencies)));
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        refresh();
+        timer.start();
+    }
+
+    @Override
+    public void removeNotify() {
+        timer.stop();
+        super.removeNotify();
+    }
+
+    private void refresh() {
+        if (!isShowing()) return;
+        Metrics.Snapshot snapshot = metrics.snapshot();
+        values.setRowCount(0);
+        for (Map.Entry<String, Long> counter : snapshot.counters().entrySet()) {
+            values.addRow(new Object[] {counter.getKey(), counter.getValue(), rate(snapshot, counter)});
+        }
+        for (Map.Entry<String, Double> gauge : snapshot.gauges().entrySet()) {
+            values.addRow(new Object[] {gauge.getKey(), String.format("%.2f", gauge.getValue()), ""});
+        }
+        latencies.setRowCount(0);
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : snapshot.histograms().entrySet()) {
+            LatencyHistogram.Snapshot histogram = entry.getValue();
+            latencies.addRow(new Object[] {entry.getKey(), histogram.count(),
+                    String.format("%.2f", histogram.meanMillis()), String.format("%.2f", histogram.p50Millis()),
+                    String.format("%.2f", histogram.p90Millis()), String.format("%.2f", histogram.p99Millis()),
+                    String.format("%.2f", histogram.maxMillis())});
+        }
+        previous = snapshot;
+    }
+
+    private String rate(Metrics.Snapshot snapshot, Map.Entry<String, Long> counter) {
+        if (previous == null || snapshot.timeMillis() <= previous.timeMillis()) return "";
+        long before = previous.counters().getOrDefault(counter.getKey(), 0L);
+        double seconds = (snapshot.timeMillis() - previous.timeMillis()) / 1000.0;
+        return String.format("%.1f", (counter.getValue() - before) / seconds);
+    }
+
+    private static DefaultTableModel readOnlyModel(String... columns) {
+        return new DefaultTableModel(columns, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+    }
+}
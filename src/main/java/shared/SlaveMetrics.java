@@ -0,0 +1,29 @@
+package shared;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Load report a slave sends as its heartbeat. cpuLoad is the system load
+ * average per core, negative when the slave cannot tell; throughput is the
+ * images per second it completed while it last had work, and executeMillis
+ * the mean time its scripts took over the same stretch.
+ */
+public record SlaveMetrics(int freeSlots, int queueDepth, double cpuLoad, long freeDiskBytes,
+                           double throughput, double executeMillis) {
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(freeSlots);
+        out.writeInt(queueDepth);
+        out.writeDouble(cpuLoad);
+        out.writeLong(freeDiskBytes);
+        out.writeDouble(throughput);
+        out.writeDouble(executeMillis);
+    }
+
+    public static SlaveMetrics read(DataInput in) throws IOException {
+        return new SlaveMetrics(in.readInt(), in.readInt(), in.readDouble(), in.readLong(), in.readDouble(),
+                in.readDouble());
+    }
+}
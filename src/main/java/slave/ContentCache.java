@@ -0,0 +1,177 @@
+package slave;
+
+import shared.ContentHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Content-addressed store of scripts and inputs on the slave's disk, keyed by
+ * SHA-256. Entries are evicted least recently used first once the total size
+ * exceeds the cap. Survives restarts: the directory is rescanned on startup
+ * and file modification times carry the recency order.
+ * <p>
+ * Entries are copied in and out rather than linked, so a script that rewrites
+ * its input in place cannot reach the cached copy, and are checked against
+ * their hash on every restore. The startup rescan trusts names and lengths,
+ * so a large cache does not delay connecting; a damaged entry is found and
+ * dropped when it is first restored.
+ * <p>
+ * Copies run outside the lock, which only guards the index: an entry being
+ * stored is pending until its copy is verified, and one being restored is
+ * not evicted until its copy is done.
+ */
+public class ContentCache {
+    private final File dir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Hashes being copied in, and the number of copies out of each entry
+    private final Set<String> pending = new HashSet<>();
+    private final Map<String, Integer> readers = new HashMap<>();
+    private long totalBytes = 0;
+    private Consumer<String> evictionListener = hash -> { };
+
+    public ContentCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+
+        File[] files = dir.listFiles(File::isFile);
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                if (!isEntryName(file.getName())) {
+                    // Part files of an interrupted copy
+                    file.delete();
+                    continue;
+                }
+                entries.put(file.getName(), file.length());
+                totalBytes += file.length();
+            }
+        }
+    }
+
+    private static boolean isEntryName(String name) {
+        return name.length() == 64 && name.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    public void setEvictionListener(Consumer<String> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    public synchronized Set<String> hashes() {
+        return new HashSet<>(entries.keySet());
+    }
+
+    /**
+     * Stores a copy of a received file under its hash and evicts old entries as
+     * needed. A file whose content does not match the hash is not cached.
+     */
+    public void put(String hash, File file) throws IOException {
+        synchronized (this) {
+            if (entries.get(hash) != null || !pending.add(hash)) {
+                return;
+            }
+        }
+        File entry = new File(dir, hash);
+        boolean stored = false;
+        List<String> evicted = new ArrayList<>();
+        try {
+            stored = copyVerified(file.toPath(), entry.toPath(), hash);
+        } finally {
+            synchronized (this) {
+                pending.remove(hash);
+                if (stored) {
+                    long length = entry.length();
+                    entries.put(hash, length);
+                    totalBytes += length;
+                    evict(hash, evicted);
+                }
+            }
+        }
+        evicted.forEach(evictionListener);
+    }
+
+    /**
+     * Drops least recently used entries until the cache fits, sparing
+     * {@code keep} and entries being restored.
+     */
+    private void evict(String keep, List<String> evicted) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep) || readers.containsKey(eldest.getKey())) continue;
+            it.remove();
+            totalBytes -= eldest.getValue();
+            new File(dir, eldest.getKey()).delete();
+            evicted.add(eldest.getKey());
+        }
+    }
+
+    /**
+     * Places a copy of the cached content for {@code hash} at {@code target}.
+     * Returns false if it is not cached or the entry no longer matches its hash;
+     * a damaged entry is dropped and reported like an eviction.
+     */
+    public boolean restore(String hash, File target) throws IOException {
+        File cached = new File(dir, hash);
+        synchronized (this) {
+            if (entries.get(hash) == null) {
+                return false;
+            }
+            readers.merge(hash, 1, Integer::sum);
+        }
+        boolean intact = false;
+        try {
+            // A file deleted from the cache directory is dropped like a damaged one
+            intact = cached.setLastModified(System.currentTimeMillis())
+                    && copyVerified(cached.toPath(), target.toPath(), hash);
+        } finally {
+            synchronized (this) {
+                readers.computeIfPresent(hash, (key, count) -> count > 1 ? count - 1 : null);
+            }
+        }
+        if (intact) {
+            return true;
+        }
+        synchronized (this) {
+            Long length = entries.remove(hash);
+            if (length == null) {
+                // Another restore already dropped it
+                return false;
+            }
+            totalBytes -= length;
+            cached.delete();
+        }
+        evictionListener.accept(hash);
+        return false;
+    }
+
+    /**
+     * Copies {@code source} to {@code target} through a part file next to the
+     * target, hashing on the way, and moves it into place only if the content
+     * matches {@code hash}.
+     */
+    private static boolean copyVerified(Path source, Path target, String hash) throws IOException {
+        MessageDigest digest = ContentHash.newDigest();
+        Path part = Files.createTempFile(target.toAbsolutePath().getParent(), "." + target.getFileName() + ".", ".part");
+        try {
+            try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest)) {
+                Files.copy(in, part, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (!HexFormat.of().formatHex(digest.digest()).equals(hash)) {
+                return false;
+            }
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package slave;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pool of resident Python interpreters running one script.
+ *
+ * Each worker runs a small bootstrap that reads one input file path per line
+ * on stdin, changes into the input's directory, executes the user script for
+ * its file name with runpy (so modules such as PIL stay imported between
+ * inputs) and answers with a single "OK" or "ERR ..." line on stdout. The
+ * script's own output goes to stderr. A worker is restarted after
+ * maxTasksPerWorker inputs or as soon as it dies. One that has not answered
+ * within the task timeout is killed, and the input fails.
+ */
+public class PythonWorkerPool implements Closeable {
+    public static final int DEFAULT_MAX_TASKS = 500;
+    public static final long DEFAULT_TASK_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    // Kills workers stuck past their deadline, for every pool
+    private static final Timer watchdog = new Timer("python-worker-watchdog", true);
+    private static final String BOOTSTRAP_NAME = ".dcp_worker.py";
+    private static final String BOOTSTRAP = """
+            import os, runpy, sys
+            script = sys.argv[1]
+            protocol = sys.stdout
+            for line in sys.stdin:
+                path = line.rstrip("\\n")
+                if not path:
+                    continue
+                os.chdir(os.path.dirname(path))
+                sys.argv = [script, os.path.basename(path)]
+                sys.stdout = sys.stderr
+                try:
+                    runpy.run_path(script, run_name="__main__")
+                    status = "OK"
+                except SystemExit as e:
+                    status = "OK" if e.code in (None, 0) else "ERR exit " + str(e.code)
+                except BaseException as e:
+                    status = "ERR " + repr(e).replace("\\n", " ")
+                finally:
+                    sys.stdout = protocol
+                protocol.write(status + "\\n")
+                protocol.flush()
+            """;
+
+    private final File workDir;
+    private final File script;
+    private final int maxTasksPerWorker;
+    private final long taskTimeoutMillis;
+    private final BlockingQueue<Worker> idle;
+    private volatile boolean closed = false;
+
+    public PythonWorkerPool(File workDir, File script, int size, int maxTasksPerWorker, long taskTimeoutMillis)
+            throws IOException {
+        this.workDir = workDir;
+        this.script = script.getAbsoluteFile();
+        this.maxTasksPerWorker = maxTasksPerWorker;
+        this.taskTimeoutMillis = taskTimeoutMillis;
+        this.idle = new ArrayBlockingQueue<>(size);
+
+        // Replaced in one step, as workers of another job's pool may be starting from it
+        Path bootstrap = Files.createTempFile(workDir.toPath(), BOOTSTRAP_NAME, ".tmp");
+        Files.writeString(bootstrap, BOOTSTRAP, StandardCharsets.UTF_8);
+        Files.move(bootstrap, new File(workDir, BOOTSTRAP_NAME).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        for (int i = 0; i < size; i++) {
+            idle.add(new Worker());
+        }
+    }
+
+    public File getScript() {
+        return script;
+    }
+
+    /**
+     * Runs the script for one input file, in that file's directory, and
+     * returns the worker's status line, "OK" on success. Blocks until a worker
+     * is free. Fails if the worker dies or runs past the task timeout.
+     */
+    public String run(File input) throws IOException, InterruptedException {
+        Worker worker = idle.take();
+        try {
+            return worker.run(input.getAbsolutePath());
+        } finally {
+            if (closed) {
+                worker.stop();
+            }
+            idle.add(worker);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Worker worker : idle) {
+            worker.stop();
+        }
+    }
+
+    private class Worker {
+        private Process process;
+        private BufferedWriter stdin;
+        private BufferedReader stdout;
+        private int tasks;
+
+        String run(String inputPath) throws IOException {
+            if (process == null || !process.isAlive()) {
+                start();
+            }
+            Process running = process;
+            AtomicBoolean timedOut = new AtomicBoolean();
+            TimerTask deadline = new TimerTask() {
+                @Override
+                public void run() {
+                    timedOut.set(true);
+                    // Ends the read below; the next input starts a new worker
+                    running.destroyForcibly();
+                }
+            };
+            watchdog.schedule(deadline, taskTimeoutMillis);
+            try {
+                stdin.write(inputPath);
+                stdin.newLine();
+                stdin.flush();
+                String status = stdout.readLine();
+                if (status == null) {
+                    throw new IOException("Python worker exited while processing " + inputPath);
+                }
+                if (++tasks >= maxTasksPerWorker) {
+                    stop();
+                }
+                return status;
+            } catch (IOException e) {
+                stop();
+                if (timedOut.get()) {
+                    throw new IOException("Python worker timed out after " + taskTimeoutMillis + " ms on " + inputPath);
+                }
+                throw e;
+            } finally {
+                deadline.cancel();
+            }
+        }
+
+        private void start() throws IOException {
+            process = new ProcessBuilder("python", BOOTSTRAP_NAME, script.getPath())
+                    .directory(workDir)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            tasks = 0;
+        }
+
+        void stop() {
+            if (process == null) return;
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                // Worker already gone
+            }
+            process.destroy();
+            process = null;
+        }
+    }
+}
@@ -0,0 +1,533 @@
+package slave;
+
+import shared.EventLog;
+import shared.FileTransfer;
+import shared.LatencyHistogram;
+import shared.Metrics;
+import shared.SlaveMetrics;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless slave: connects to a master, receives scripts and images into its
+ * working directory, runs them on a worker pool and streams results back.
+ * SlaveGUI and SlaveNode drive it and observe it through a {@link Listener}.
+ */
+public class SlaveEngine {
+    // Images the master may queue with us on top of those being processed
+    private static final int PREFETCH_WINDOW = 2;
+
+    private final File workDir;
+    private final Listener listener;
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+    private String slaveId;
+    private volatile boolean zeroCopy = false;
+    // Deflate level offered to the master, and the one it agreed to
+    private volatile int compressionLevel = 0;
+    private volatile int agreedCompression = 0;
+    private volatile boolean persistentWorkers = false;
+    private int slots;
+    private ExecutorService workers;
+    private ContentCache cache;
+    // Script of every job the master has tasks for, by job id
+    private final Map<String, JobScript> jobs = new ConcurrentHashMap<>();
+    // Tasks accepted and not yet answered, those the master has cancelled,
+    // and the Python processes running the rest, by task id
+    private final Set<Long> queued = ConcurrentHashMap.newKeySet();
+    private final Set<Long> cancelled = ConcurrentHashMap.newKeySet();
+    private final Map<Long, Process> running = new ConcurrentHashMap<>();
+    // Images being processed right now, and all answered so far
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong answered = new AtomicLong();
+    // Time spent on each stage of a task, from receiving its image to sending its result
+    private final Metrics metrics = new Metrics();
+    private final LatencyHistogram receiveTime = metrics.histogram("task.receive");
+    private final LatencyHistogram queueWait = metrics.histogram("task.queue_wait");
+    private final LatencyHistogram executeTime = metrics.histogram("task.execute");
+    private final LatencyHistogram resultTime = metrics.histogram("result.send");
+
+    private AtomicBoolean connected = new AtomicBoolean(false);
+
+    /**
+     * Receives everything the engine reports. Callbacks arrive on engine
+     * threads; GUIs hand them to the EDT themselves.
+     */
+    public interface Listener {
+        void log(String message);
+
+        /**
+         * Receives every message with its level; listeners that only want
+         * the text need not override it.
+         */
+        default void log(EventLog.Level level, String message) {
+            log(message);
+        }
+
+        default void disconnected() {
+        }
+    }
+
+    public SlaveEngine(File workDir, Listener listener) {
+        this.workDir = workDir;
+        this.listener = listener;
+        metrics.gauge("tasks.queued", () -> Math.max(0, queued.size() - active.get()));
+        metrics.gauge("tasks.active", active::get);
+        metrics.gauge("jobs", jobs::size);
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * Offers Deflate compression at this level from the next connect; 0 keeps
+     * every transfer raw.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public void setPersistentWorkers(boolean persistentWorkers) {
+        this.persistentWorkers = persistentWorkers;
+    }
+
+    public boolean isConnected() {
+        return connected.get();
+    }
+
+    /**
+     * Connects and performs the handshake, then keeps receiving and running
+     * tasks on background threads until the connection ends.
+     */
+    public void connect(String host, int port, int slots, long cacheBytes) throws IOException {
+        if (slots < 1) {
+            throw new IllegalArgumentException("Workers must be at least 1");
+        }
+        this.slots = slots;
+        agreedCompression = 0;
+        workers = Executors.newFixedThreadPool(slots);
+        cache = new ContentCache(new File(workDir, ".dcp_cache"), cacheBytes);
+
+        try {
+            // Opened through a channel so results can be sent with FileChannel.transferTo
+            socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), FileTransfer.CHUNK_SIZE));
+            in = new FileTransfer.SocketInput(socket, FileTransfer.CHUNK_SIZE);
+
+            // Get slave ID before any other reader touches the stream
+            slaveId = in.readUTF();
+            connected.set(true);
+            log("Connected as: " + slaveId);
+
+            cache.setEvictionListener(this::sendEvicted);
+            Set<String> cached = cache.hashes();
+            synchronized (out) {
+                out.writeUTF("INVENTORY");
+                out.writeInt(cached.size());
+                for (String hash : cached) {
+                    out.writeUTF(hash);
+                }
+                out.writeUTF("SLOTS");
+                out.writeInt(slots);
+                if (compressionLevel > 0) {
+                    out.writeUTF("COMPRESSION");
+                    out.writeInt(compressionLevel);
+                }
+                out.writeUTF("READY");
+                out.writeInt(slots + PREFETCH_WINDOW);
+                out.flush();
+            }
+            log("Running up to " + slots + " tasks in parallel");
+        } catch (IOException e) {
+            disconnect();
+            throw e;
+        }
+
+        // Start heartbeat thread
+        new Thread(this::sendHeartbeats).start();
+
+        // Start processing thread
+        processTasks();
+    }
+
+    /**
+     * Sends a metrics report every few seconds; the master takes each one as
+     * a heartbeat and weighs how much work to send by it.
+     */
+    private void sendHeartbeats() {
+        double throughput = 0;
+        double executeMillis = 0;
+        long lastAnswered = answered.get();
+        long lastExecuted = executeTime.count();
+        long lastExecuteMicros = executeTime.totalMicros();
+        long lastReport = System.nanoTime();
+        try {
+            while (connected.get()) {
+                long now = System.nanoTime();
+                long done = answered.get();
+                // Only intervals with work say anything about speed
+                if (done > lastAnswered || !queued.isEmpty()) {
+                    double rate = (done - lastAnswered) / ((now - lastReport) / 1e9);
+                    throughput = throughput > 0 ? 0.5 * throughput + 0.5 * rate : rate;
+                }
+                lastAnswered = done;
+                lastReport = now;
+                long executed = executeTime.count();
+                long executeMicros = executeTime.totalMicros();
+                if (executed > lastExecuted) {
+                    executeMillis = (executeMicros - lastExecuteMicros) / 1000.0 / (executed - lastExecuted);
+                }
+                lastExecuted = executed;
+                lastExecuteMicros = executeMicros;
+
+                SlaveMetrics metrics = new SlaveMetrics(slots - active.get(),
+                        Math.max(0, queued.size() - active.get()), cpuLoad(), workDir.getUsableSpace(), throughput,
+                        executeMillis);
+                synchronized (out) {
+                    out.writeUTF("METRICS");
+                    metrics.write(out);
+                    out.flush();
+                }
+                Thread.sleep(3000);
+            }
+        } catch (Exception e) {
+            warn("Heartbeat error: " + e.getMessage());
+            disconnect();
+        }
+    }
+
+    private static double cpuLoad() {
+        double load = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        return load < 0 ? -1 : load / Runtime.getRuntime().availableProcessors();
+    }
+
+    private void processTasks() {
+        new Thread(() -> {
+            try {
+                while (connected.get()) {
+                    String command = in.readUTF();
+
+                    if ("SCRIPT".equals(command)) {
+                        String jobId = in.readUTF();
+                        File jobDir = jobDir(jobId);
+                        jobDir.mkdirs();
+                        File script = receiveContent("SCRIPT", jobId, -1, jobDir);
+                        if (script != null) {
+                            log("Received script " + script.getName() + " for job " + jobId);
+                            startJob(jobId, script);
+                        }
+                    }
+                    else if ("IMAGE".equals(command)) {
+                        String jobId = in.readUTF();
+                        receiveTask(jobId, in.readLong());
+                    }
+                    else if ("BATCH".equals(command)) {
+                        String jobId = in.readUTF();
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            receiveTask(jobId, in.readLong());
+                        }
+                        debug("Received batch of " + count + " image(s)");
+                    }
+                    else if ("END".equals(command)) {
+                        endJob(in.readUTF());
+                    }
+                    else if ("COMPRESSION".equals(command)) {
+                        agreedCompression = in.readInt();
+                        log("Compression level agreed with master: " + agreedCompression);
+                    }
+                    else if ("CANCEL".equals(command)) {
+                        cancel(in.readLong());
+                    }
+                    else if ("SHUTDOWN".equals(command)) {
+                        log("Master is shutting down");
+                        disconnect();
+                    }
+                }
+            } catch (Exception e) {
+                if (connected.get()) {
+                    warn("Task processing error: " + e.getMessage());
+                    disconnect();
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Each job keeps its script in a directory of its own, and each task its
+     * image and result, so jobs running side by side never share a file name.
+     */
+    private File jobDir(String jobId) {
+        return new File(workDir, "jobs" + File.separator + new File(jobId).getName());
+    }
+
+    private File taskDir(long taskId) {
+        return new File(workDir, "tasks" + File.separator + taskId);
+    }
+
+    /**
+     * Reads a file sent either inline or as a reference into the local content
+     * cache and places it in {@code dir}. Returns null when referenced content
+     * has been evicted meanwhile; the master is then asked to send it again
+     * for the same job and task.
+     */
+    private File receiveContent(String command, String jobId, long taskId, File dir) throws IOException {
+        if (in.readBoolean()) {
+            String hash = in.readUTF();
+            File file = FileTransfer.receiveFile(in, dir, zeroCopy);
+            cache.put(hash, file);
+            return file;
+        }
+
+        File target = new File(dir, new File(in.readUTF()).getName());
+        String hash = in.readUTF();
+        if (cache.restore(hash, target)) {
+            return target;
+        }
+        synchronized (out) {
+            out.writeUTF("MISSING");
+            out.writeUTF(command);
+            out.writeUTF(jobId);
+            out.writeLong(taskId);
+            out.writeUTF(hash);
+            out.flush();
+        }
+        return null;
+    }
+
+    private void receiveTask(String jobId, long taskId) throws IOException {
+        long start = System.nanoTime();
+        File dir = taskDir(taskId);
+        dir.mkdirs();
+        File image = receiveContent("IMAGE", jobId, taskId, dir);
+        if (image != null) {
+            receiveTime.recordSince(start);
+            metrics.add("bytes.in", image.length());
+            submit(jobId, taskId, image);
+        }
+    }
+
+    private void sendEvicted(String hash) {
+        try {
+            synchronized (out) {
+                out.writeUTF("EVICTED");
+                out.writeUTF(hash);
+                out.flush();
+            }
+        } catch (IOException e) {
+            warn("Failed to report cache eviction: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Hands a task to the worker pool so the reader keeps accepting tasks.
+     * Its result is sent back on its own as soon as it is ready.
+     */
+    private void submit(String jobId, long taskId, File image) {
+        queued.add(taskId);
+        long queuedAt = System.nanoTime();
+        workers.execute(() -> {
+            queueWait.recordSince(queuedAt);
+            active.incrementAndGet();
+            String result;
+            long start = System.nanoTime();
+            try {
+                JobScript job = jobs.get(jobId);
+                result = cancelled.contains(taskId) ? "ERROR: Cancelled"
+                        : job == null ? "ERROR: No script for job " + jobId
+                        : processImage(job, taskId, image);
+            } finally {
+                active.decrementAndGet();
+            }
+            executeTime.recordSince(start);
+            answered.incrementAndGet();
+            queued.remove(taskId);
+            cancelled.remove(taskId);
+            try {
+                start = System.nanoTime();
+                sendResult(taskId, image, result);
+                resultTime.recordSince(start);
+            } catch (IOException e) {
+                warn("Result sending failed: " + e.getMessage());
+                disconnect();
+            } finally {
+                deleteRecursively(image.getParentFile());
+            }
+        });
+    }
+
+    /**
+     * The master got this task's result from another slave. A queued task
+     * is skipped and a running script killed; persistent workers finish it.
+     * Either way the task is still answered so the master gets its credit back.
+     */
+    private void cancel(long taskId) {
+        if (!queued.contains(taskId)) return;
+        cancelled.add(taskId);
+        Process process = running.get(taskId);
+        if (process != null) process.destroy();
+        debug("Cancelled task " + taskId);
+    }
+
+    /**
+     * Makes a job's script runnable, with resident interpreters of its own
+     * when persistent mode is on.
+     */
+    private void startJob(String jobId, File script) throws IOException {
+        PythonWorkerPool pool = persistentWorkers
+                ? new PythonWorkerPool(workDir, script, slots, PythonWorkerPool.DEFAULT_MAX_TASKS,
+                        PythonWorkerPool.DEFAULT_TASK_TIMEOUT_MILLIS)
+                : null;
+        JobScript previous = jobs.put(jobId, new JobScript(script, pool));
+        if (previous != null && previous.pool() != null) previous.pool().close();
+    }
+
+    private void endJob(String jobId) {
+        JobScript job = jobs.remove(jobId);
+        if (job == null) return;
+        if (job.pool() != null) job.pool().close();
+        deleteRecursively(jobDir(jobId));
+        log("Job " + jobId + " ended");
+    }
+
+    private String processImage(JobScript job, long taskId, File image) {
+        if (job.pool() != null) {
+            return processWithPool(job.pool(), image);
+        }
+        String imageName = image.getName();
+        try {
+            debug("Starting Python processing for: " + imageName);
+            Process p = new ProcessBuilder("python", job.script().getAbsolutePath(), imageName)
+                    .directory(image.getParentFile())
+                    .redirectErrorStream(true)
+                    .start();
+            running.put(taskId, p);
+            if (cancelled.contains(taskId)) p.destroy();
+
+            // Capture Python output
+            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            StringBuilder output = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append("\n");
+            }
+
+            int exitCode = p.waitFor();
+            debug("Python process exited with code: " + exitCode);
+            debug("Python output:\n" + output);
+
+            File resultFile = new File(image.getParentFile(), "bw_" + imageName);
+            if (resultFile.exists()) {
+                return resultFile.getName();
+            }
+            return "ERROR: Result file not created";
+        } catch (Exception e) {
+            warn("Processing failed: " + e.getMessage());
+            return "ERROR: " + e.getMessage();
+        } finally {
+            running.remove(taskId);
+        }
+    }
+
+    private String processWithPool(PythonWorkerPool pool, File image) {
+        try {
+            String status = pool.run(image);
+            if (!"OK".equals(status)) {
+                warn("Python worker reported for " + image.getName() + ": " + status);
+            }
+
+            File resultFile = new File(image.getParentFile(), "bw_" + image.getName());
+            if (resultFile.exists()) {
+                return resultFile.getName();
+            }
+            return "ERROR: Result file not created";
+        } catch (Exception e) {
+            warn("Processing failed: " + e.getMessage());
+            return "ERROR: " + e.getMessage();
+        }
+    }
+
+    private void sendResult(long taskId, File image, String result) throws IOException {
+        File resultFile = new File(image.getParentFile(), result);
+        synchronized (out) {
+            if (!result.startsWith("ERROR") && resultFile.exists()) {
+                out.writeUTF("RESULT");
+                out.writeLong(taskId);
+                FileTransfer.sendFile(out, zeroCopy ? socket.getChannel() : null, resultFile,
+                        FileTransfer.compressionLevel(resultFile, agreedCompression));
+                out.flush();
+                metrics.increment("tasks.completed");
+                metrics.add("bytes.out", resultFile.length());
+                debug("Sent result: " + result);
+            } else {
+                out.writeUTF("FAILED");
+                out.writeLong(taskId);
+                out.writeUTF(result);
+                out.flush();
+                metrics.increment("tasks.failed");
+                debug("Sent error marker for: " + image.getName());
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    public void disconnect() {
+        boolean wasConnected = connected.getAndSet(false);
+        if (workers != null) workers.shutdownNow();
+        for (JobScript job : jobs.values()) {
+            if (job.pool() != null) job.pool().close();
+        }
+        jobs.clear();
+        try {
+            if (out != null) out.close();
+            if (in != null) in.close();
+            if (socket != null) socket.close();
+        } catch (IOException e) {
+            warn("Error disconnecting: " + e.getMessage());
+        }
+        if (wasConnected) {
+            log("Disconnected from master");
+            log("Transfers: " + FileTransfer.stats());
+            listener.disconnected();
+        }
+    }
+
+    private void log(String message) {
+        listener.log(EventLog.Level.INFO, message);
+    }
+
+    private void debug(String message) {
+        listener.log(EventLog.Level.DEBUG, message);
+    }
+
+    private void warn(String message) {
+        listener.log(EventLog.Level.WARN, message);
+    }
+
+    private record JobScript(File script, PythonWorkerPool pool) {
+    }
+}
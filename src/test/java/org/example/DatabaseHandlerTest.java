@@ -0,0 +1,166 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import shared.LatencyHistogram;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseHandlerTest {
+    @TempDir
+    File tmp;
+    private MasterEngine engine;
+    private MasterEngine.DatabaseHandler db;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        engine = new MasterEngine(new File(tmp, "output"), new File(tmp, "master.db"), message -> { });
+        db = open();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        db.close();
+        engine.close();
+    }
+
+    @Test
+    void groupCommitsUpdatesThatArriveTogether() throws Exception {
+        LatencyHistogram commits = engine.metrics().histogram("db.commit");
+        String job = db.createJob(3, MasterEngine.Priority.NORMAL);
+        List<Long> ids = db.createTasks(job, List.of("a.png", "b.png", "c.png"));
+
+        db.updateTask(job, ids.get(0), "COMPLETED", "out/a.png");
+        db.updateTask(job, ids.get(1), "COMPLETED", "out/b.png");
+        db.updateTask(job, ids.get(2), "FAILED", "boom");
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ((commits.count() == 0 || db.pendingWrites() > 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, commits.count(), "three updates, their counters and the job's end in one transaction");
+        MasterEngine.JobSummary summary = db.loadJobHistory(null, 10).get(0);
+        assertEquals("FAILED", summary.status());
+        assertEquals(2, summary.completed());
+        assertEquals(1, summary.failed());
+    }
+
+    @Test
+    void closeCommitsWhatIsQueued() throws Exception {
+        String job = db.createJob(1, MasterEngine.Priority.HIGH);
+        long id = db.createTasks(job, List.of("a.png")).get(0);
+        db.updateTask(job, id, "COMPLETED", "out/a.png");
+
+        reopen();
+
+        MasterEngine.JobSummary summary = db.loadJobHistory(null, 10).get(0);
+        assertEquals("COMPLETED", summary.status());
+        assertEquals(MasterEngine.Priority.HIGH, summary.priority());
+    }
+
+    @Test
+    void finishesJobsOfAnEarlierRun() throws Exception {
+        String job = db.createJob(2, MasterEngine.Priority.NORMAL);
+        List<Long> ids = db.createTasks(job, List.of("a.png", "b.png"));
+        db.updateTask(job, ids.get(0), "COMPLETED", "out/a.png");
+        reopen();
+
+        // Nothing in memory about this job any more; its rows are counted instead
+        db.updateTask(job, ids.get(1), "FAILED", "boom");
+        reopen();
+
+        MasterEngine.JobSummary summary = db.loadJobHistory(null, 10).get(0);
+        assertEquals("FAILED", summary.status(), "a failed task ends the job as well");
+        assertEquals(1, summary.completed());
+        assertEquals(1, summary.failed());
+    }
+
+    @Test
+    void newTaskIdsFollowTheStoredOnes() throws Exception {
+        String first = db.createJob(2, MasterEngine.Priority.NORMAL);
+        List<Long> firstIds = db.createTasks(first, List.of("a.png", "b.png"));
+        reopen();
+
+        String second = db.createJob(1, MasterEngine.Priority.NORMAL);
+        List<Long> secondIds = db.createTasks(second, List.of("c.png"));
+
+        assertEquals(List.of(firstIds.get(1) + 1), secondIds);
+    }
+
+    @Test
+    void countersFollowARunningJob() throws Exception {
+        String job = db.createJob(3, MasterEngine.Priority.NORMAL);
+        List<Long> ids = db.createTasks(job, List.of("a.png", "b.png", "c.png"));
+        db.updateTask(job, ids.get(0), "COMPLETED", "out/a.png");
+        db.updateTask(job, ids.get(1), "FAILED", "boom");
+        reopen();
+
+        MasterEngine.JobSummary summary = db.loadJobHistory(null, 10).get(0);
+        assertEquals("PROCESSING", summary.status());
+        assertEquals(3, summary.numImages());
+        assertEquals(1, summary.completed());
+        assertEquals(1, summary.failed());
+    }
+
+    @Test
+    void progressCountsEachTaskOnce() {
+        MasterEngine.JobProgress progress = new MasterEngine.JobProgress(2);
+
+        assertFalse(progress.record(1, "FAILED"));
+        // Stored anyway, e.g. by a duplicate that answered after the original failed
+        assertFalse(progress.record(1, "COMPLETED"));
+        assertFalse(progress.record(1, "FAILED"), "a completed task stays completed");
+        assertEquals(1, progress.completedCount());
+        assertEquals(0, progress.failedCount());
+
+        assertTrue(progress.record(2, "COMPLETED"));
+        assertFalse(progress.record(2, "COMPLETED"), "the job ends only once");
+        assertEquals(2, progress.completedCount());
+    }
+
+    @Test
+    void pagesHistoryNewestFirst() throws Exception {
+        List<String> created = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            created.add(db.createJob(1, MasterEngine.Priority.NORMAL));
+        }
+
+        List<MasterEngine.JobSummary> all = db.loadJobHistory(null, 10);
+        List<MasterEngine.JobSummary> paged = new ArrayList<>();
+        List<MasterEngine.JobSummary> page = db.loadJobHistory(null, 2);
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= 2);
+            paged.addAll(page);
+            page = db.loadJobHistory(page.get(page.size() - 1), 2);
+        }
+
+        assertEquals(all, paged, "pages join up without gaps or repeats");
+        assertEquals(new HashSet<>(created), paged.stream().map(MasterEngine.JobSummary::jobId).collect(Collectors.toSet()));
+        List<MasterEngine.JobSummary> sorted = new ArrayList<>(all);
+        sorted.sort(Comparator.comparing(MasterEngine.JobSummary::startTime)
+                .thenComparing(MasterEngine.JobSummary::jobId).reversed());
+        assertEquals(sorted, all);
+    }
+
+    private MasterEngine.DatabaseHandler open() throws Exception {
+        return engine.new DatabaseHandler(new File(tmp, "jobs.db"));
+    }
+
+    /**
+     * Closes the handler, which commits everything queued, and opens the
+     * database again as a restarted master would.
+     */
+    private void reopen() throws Exception {
+        db.close();
+        db = open();
+    }
+}
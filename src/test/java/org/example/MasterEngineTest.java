@@ -0,0 +1,100 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MasterEngineTest {
+    @TempDir
+    File tmp;
+    private MasterEngine engine;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        engine = new MasterEngine(new File(tmp, "output"), new File(tmp, "master.db"), message -> { });
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        if (engine.isRunning()) engine.stop();
+        engine.close();
+    }
+
+    @Test
+    void slaveThatCannotBeGreetedIsNotRegistered() {
+        MasterEngine.SlaveHandler handler = engine.new SlaveHandler(new Socket(), new BrokenLink());
+
+        assertThrows(IOException.class, () -> engine.admit(handler, false));
+        assertEquals(0, engine.getSlaveCount());
+    }
+
+    @Test
+    void keepsAcceptingAfterBrokenConnections() throws Exception {
+        engine.start(0);
+        InetAddress host = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < 20; i++) {
+            // Reset at once, so the master may fail anywhere while setting it up
+            Socket broken = new Socket(host, engine.getPort());
+            broken.setSoLinger(true, 0);
+            broken.close();
+        }
+
+        try (Socket slave = new Socket(host, engine.getPort())) {
+            DataInputStream in = new DataInputStream(slave.getInputStream());
+            assertFalse(in.readUTF().isEmpty(), "expected the slave's ID");
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (engine.getSlaveCount() != 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, engine.getSlaveCount(), "only the live slave stays registered");
+        }
+    }
+
+    @Test
+    void unknownMissingContentGivesUpTheTask() throws Exception {
+        MasterEngine.SlaveHandler handler = engine.new SlaveHandler(new Socket(), new NullLink());
+        handler.onReady(1);
+        File image = new File(tmp, "image.png");
+        try (FileOutputStream out = new FileOutputStream(image)) {
+            out.write(new byte[] {1, 2, 3});
+        }
+        assertTrue(handler.acquireCredit());
+        handler.sendBatch(List.of(new MasterEngine.Task(7, image)), "job", "script-hash");
+
+        handler.onMissing("IMAGE", "job", 7, "0".repeat(64));
+
+        assertEquals(0, handler.inFlightCount());
+        assertEquals(1, handler.acquireMoreCredits(1, 0), "the slave never answers, so the credit is returned");
+    }
+
+    /**
+     * Link whose writes fail, as on a connection reset before the greeting.
+     */
+    private static final class BrokenLink implements MasterEngine.SlaveLink {
+        private final DataOutputStream out = new DataOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        });
+
+        public DataOutputStream output() {
+            return out;
+        }
+
+        public void sendFile(File file, int level) throws IOException {
+            throw new IOException("Connection reset");
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.example;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+
+/**
+ * Link for handlers under test that never talk to a slave: whatever they
+ * send is dropped.
+ */
+class NullLink implements MasterEngine.SlaveLink {
+    private final DataOutputStream out = new DataOutputStream(OutputStream.nullOutputStream());
+
+    public DataOutputStream output() {
+        return out;
+    }
+
+    public void sendFile(File file, int level) {
+    }
+
+    public void close() {
+    }
+}
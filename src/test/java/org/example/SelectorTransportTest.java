@@ -0,0 +1,326 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import shared.FileTransfer;
+import shared.SlaveMetrics;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Feeds the selector transport's decoder what a slave sends, split at every
+ * possible point, as a non-blocking read may deliver it.
+ */
+class SelectorTransportTest {
+    @TempDir
+    File tmp;
+    private MasterEngine engine;
+    // Each handler receives into a directory of its own
+    private int handlers = 0;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        engine = new MasterEngine(new File(tmp, "output"), new File(tmp, "master.db"), message -> { });
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        engine.close();
+    }
+
+    @Test
+    void decodesControlMessages() throws IOException {
+        byte[] wire = controlMessages();
+        List<String> expected = List.of("METRICS 3 2 0.5 1024 7.5 12.0", "HEARTBEAT", "SLOTS 4", "INVENTORY aaa",
+                "INVENTORY bbb", "EVICTED aaa", "MISSING IMAGE job-1 7 ccc", "READY 8", "COMPRESSION 6",
+                "FAILED 9 script error");
+
+        assertEquals(expected, decodeWhole(wire).events);
+        for (int split = 1; split < wire.length; split++) {
+            assertEquals(expected, decodeSplit(wire, split).events, "split at " + split);
+        }
+        assertEquals(expected, decodeBytewise(wire).events);
+    }
+
+    @Test
+    void decodesResults() throws IOException {
+        assertDecodesResultAtEverySplit(0);
+    }
+
+    @Test
+    void decodesDeflatedResults() throws IOException {
+        assertDecodesResultAtEverySplit(6);
+    }
+
+    @Test
+    void decodesMultiFrameResultsBytewise() throws IOException {
+        byte[] content = new byte[3 * FileTransfer.CHUNK_SIZE + 5];
+        new Random(1).nextBytes(content);
+        File large = new File(tmp, "large.bin");
+        Files.write(large.toPath(), content);
+        File text = textFile("large.txt", 30000);
+
+        byte[] wire = concat(result(1, large, 0), result(2, text, 6), message("SLOTS", 2));
+        RecordingHandler handler = decodeBytewise(wire);
+
+        assertEquals(List.of("RESULT 1 large.bin", "RESULT 2 large.txt", "SLOTS 2"), handler.events);
+        assertArrayEquals(content, handler.results.get(0));
+        assertEquals(Files.readString(text.toPath()), handler.contents.get(1));
+    }
+
+    @Test
+    void rejectsCorruptResult() throws IOException {
+        File small = textFile("small.txt", 20);
+        byte[] wire = result(1, small, 0);
+        wire[wire.length - 1] ^= 1;
+
+        RecordingHandler handler = new RecordingHandler(engine, new File(tmp, "incoming"));
+        SelectorTransport.Decoder decoder = new SelectorTransport.Decoder(handler);
+        IOException e = assertThrows(IOException.class, () -> decoder.decode(ByteBuffer.wrap(wire)));
+        assertTrue(e.getMessage().startsWith("Checksum mismatch"), e.getMessage());
+        assertEquals(List.of(), handler.events);
+        assertEquals(0, handler.dir.listFiles().length);
+    }
+
+    @Test
+    void abortDeletesPartialResult() throws IOException {
+        File small = textFile("small.txt", 200);
+        byte[] wire = result(1, small, 0);
+
+        RecordingHandler handler = new RecordingHandler(engine, new File(tmp, "incoming"));
+        SelectorTransport.Decoder decoder = new SelectorTransport.Decoder(handler);
+        decoder.decode(ByteBuffer.wrap(wire, 0, wire.length / 2));
+        assertEquals(1, handler.dir.listFiles().length);
+        decoder.abort();
+        assertEquals(0, handler.dir.listFiles().length);
+    }
+
+    @Test
+    void rejectsUnknownCommand() throws IOException {
+        RecordingHandler handler = new RecordingHandler(engine, new File(tmp, "incoming"));
+        SelectorTransport.Decoder decoder = new SelectorTransport.Decoder(handler);
+        IOException e = assertThrows(IOException.class,
+                () -> decoder.decode(ByteBuffer.wrap(message("BOGUS"))));
+        assertTrue(e.getMessage().contains("BOGUS"), e.getMessage());
+    }
+
+    private void assertDecodesResultAtEverySplit(int level) throws IOException {
+        File small = textFile("small.txt", 20);
+        String content = Files.readString(small.toPath());
+        byte[] wire = concat(result(1, small, level), message("HEARTBEAT"));
+        for (int split = 1; split < wire.length; split++) {
+            RecordingHandler handler = decodeSplit(wire, split);
+            assertEquals(List.of("RESULT 1 small.txt", "HEARTBEAT"), handler.events, "split at " + split);
+            assertEquals(content, handler.contents.get(0));
+        }
+    }
+
+    private RecordingHandler decodeWhole(byte[] wire) throws IOException {
+        return decodeSplit(wire, wire.length);
+    }
+
+    private RecordingHandler decodeSplit(byte[] wire, int split) throws IOException {
+        RecordingHandler handler = newHandler();
+        Feeder feeder = new Feeder(handler, wire.length);
+        feeder.feed(wire, 0, split);
+        feeder.feed(wire, split, wire.length - split);
+        feeder.assertDrained();
+        return handler;
+    }
+
+    private RecordingHandler decodeBytewise(byte[] wire) throws IOException {
+        RecordingHandler handler = newHandler();
+        Feeder feeder = new Feeder(handler, wire.length);
+        for (int i = 0; i < wire.length; i++) {
+            feeder.feed(wire, i, 1);
+        }
+        feeder.assertDrained();
+        return handler;
+    }
+
+    private RecordingHandler newHandler() {
+        return new RecordingHandler(engine, new File(tmp, "incoming-" + handlers++));
+    }
+
+    /**
+     * Keeps what the decoder left unconsumed and appends the next read to it,
+     * like the transport's read buffer.
+     */
+    private static final class Feeder {
+        private final SelectorTransport.Decoder decoder;
+        private final ByteBuffer buffer;
+
+        Feeder(RecordingHandler handler, int capacity) {
+            decoder = new SelectorTransport.Decoder(handler);
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        void feed(byte[] bytes, int offset, int length) throws IOException {
+            buffer.put(bytes, offset, length);
+            buffer.flip();
+            decoder.decode(buffer);
+            buffer.compact();
+        }
+
+        void assertDrained() {
+            assertEquals(0, buffer.position(), "bytes left undecoded");
+        }
+    }
+
+    private static byte[] controlMessages() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("METRICS");
+        new SlaveMetrics(3, 2, 0.5, 1024, 7.5, 12).write(out);
+        out.writeUTF("HEARTBEAT");
+        out.writeUTF("SLOTS");
+        out.writeInt(4);
+        out.writeUTF("INVENTORY");
+        out.writeInt(2);
+        out.writeUTF("aaa");
+        out.writeUTF("bbb");
+        out.writeUTF("EVICTED");
+        out.writeUTF("aaa");
+        out.writeUTF("MISSING");
+        out.writeUTF("IMAGE");
+        out.writeUTF("job-1");
+        out.writeLong(7);
+        out.writeUTF("ccc");
+        out.writeUTF("READY");
+        out.writeInt(8);
+        out.writeUTF("COMPRESSION");
+        out.writeInt(6);
+        out.writeUTF("FAILED");
+        out.writeLong(9);
+        out.writeUTF("script error");
+        return bytes.toByteArray();
+    }
+
+    private static byte[] message(String command, int... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(command);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] result(long taskId, File file, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("RESULT");
+        out.writeLong(taskId);
+        FileTransfer.sendFile(out, file, file.getName(), level);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.writeBytes(part);
+        }
+        return bytes.toByteArray();
+    }
+
+    private File textFile(String name, int lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i % 100).append('\n');
+        }
+        File file = new File(tmp, name);
+        Files.writeString(file.toPath(), text);
+        return file;
+    }
+
+    /**
+     * Records what the decoder delivers instead of acting on it.
+     */
+    private static final class RecordingHandler extends MasterEngine.SlaveHandler {
+        final File dir;
+        final List<String> events = new ArrayList<>();
+        final List<byte[]> results = new ArrayList<>();
+        final List<String> contents = new ArrayList<>();
+
+        RecordingHandler(MasterEngine engine, File dir) {
+            engine.super(new Socket(), new NullLink());
+            this.dir = dir;
+            assertTrue(dir.mkdirs());
+        }
+
+        @Override
+        void onHeartbeat() {
+            events.add("HEARTBEAT");
+        }
+
+        @Override
+        void onMetrics(SlaveMetrics m) {
+            events.add("METRICS " + m.freeSlots() + " " + m.queueDepth() + " " + m.cpuLoad() + " "
+                    + m.freeDiskBytes() + " " + m.throughput() + " " + m.executeMillis());
+        }
+
+        @Override
+        void onSlots(int slots) {
+            events.add("SLOTS " + slots);
+        }
+
+        @Override
+        void onInventory(String hash) {
+            events.add("INVENTORY " + hash);
+        }
+
+        @Override
+        void onEvicted(String hash) {
+            events.add("EVICTED " + hash);
+        }
+
+        @Override
+        void onMissing(String command, String jobId, long taskId, String hash) {
+            events.add("MISSING " + command + " " + jobId + " " + taskId + " " + hash);
+        }
+
+        @Override
+        void onReady(int count) {
+            events.add("READY " + count);
+        }
+
+        @Override
+        void onCompression(int level) {
+            events.add("COMPRESSION " + level);
+        }
+
+        @Override
+        File resultDir(long taskId) {
+            return dir;
+        }
+
+        @Override
+        void onResult(long taskId, File received, long receiveNanos) {
+            events.add("RESULT " + taskId + " " + received.getName());
+            try {
+                byte[] content = Files.readAllBytes(received.toPath());
+                results.add(content);
+                contents.add(new String(content, StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            assertTrue(received.delete());
+        }
+
+        @Override
+        void onFailed(long taskId, String reason) {
+            events.add("FAILED " + taskId + " " + reason);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TaskDistributorTest {
+    @TempDir
+    File tmp;
+    private MasterEngine engine;
+    // Nanoseconds on the scheduler's clock, moved by the tests
+    private final AtomicLong clock = new AtomicLong();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        engine = new MasterEngine(new File(tmp, "output"), new File(tmp, "master.db"), message -> { });
+        engine.setClock(clock::get);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        engine.close();
+    }
+
+    @Test
+    void dealsRoundRobinAndStealsFromTheTail() {
+        engine.setWeightedScheduling(false);
+        FakeSlave a = new FakeSlave(engine, 0);
+        FakeSlave b = new FakeSlave(engine, 0);
+        MasterEngine.TaskDistributor job = job(6);
+        job.deal(List.of(a, b), tasks(6));
+
+        assertEquals(List.of(1L, 3L, 5L), take(job, b, 3));
+        // b's backlog is empty; it takes from the end of a's
+        assertEquals(4, job.nextTask(b).id());
+        assertEquals(List.of(0L, 2L), take(job, a, 2));
+        assertNull(job.nextTask(a));
+        assertNull(job.nextTask(b));
+    }
+
+    @Test
+    void creditsBoundWorkInFlight() throws InterruptedException {
+        FakeSlave a = new FakeSlave(engine, 0);
+        a.onReady(2);
+
+        assertTrue(a.acquireCredit());
+        assertEquals(1, a.acquireMoreCredits(4, 0), "only the credits the slave granted");
+        assertEquals(0, a.acquireMoreCredits(4, 10));
+        // A result returns its credit
+        a.releaseCredit();
+        assertEquals(1, a.acquireMoreCredits(4, 0));
+
+        a.connectionLost();
+        assertFalse(a.acquireCredit(), "a lost slave takes no more work");
+    }
+
+    @Test
+    void dealsInProportionToSpeed() {
+        FakeSlave fast = new FakeSlave(engine, 3);
+        FakeSlave slow = new FakeSlave(engine, 1);
+        MasterEngine.TaskDistributor job = job(12);
+        job.deal(List.of(fast, slow), tasks(12));
+
+        assertEquals(List.of(9L, 10L, 11L), take(job, slow, 3));
+        // fast still has 9 tasks queued, so slow would finish its last one sooner
+        assertEquals(8, job.nextTask(slow).id());
+        assertEquals(0, job.nextTask(fast).id());
+    }
+
+    @Test
+    void slowerSlaveDoesNotSteal() {
+        FakeSlave fast = new FakeSlave(engine, 1);
+        FakeSlave slow = new FakeSlave(engine, 0.1);
+        MasterEngine.TaskDistributor job = job(2);
+        job.deal(List.of(fast, slow), tasks(2));
+
+        assertNull(job.nextTask(slow));
+        assertEquals(List.of(0L, 1L), take(job, fast, 2));
+    }
+
+    @Test
+    void saturatedSlaveGetsNoWork() {
+        FakeSlave saturated = new FakeSlave(engine, 5);
+        saturated.saturated = true;
+        FakeSlave other = new FakeSlave(engine, 1);
+        MasterEngine.TaskDistributor job = job(4);
+        job.deal(List.of(saturated, other), tasks(4));
+
+        assertNull(job.nextTask(saturated));
+        assertEquals(List.of(0L, 1L, 2L, 3L), take(job, other, 4));
+    }
+
+    @Test
+    void removedSlaveBacklogGoesToOthers() {
+        engine.setWeightedScheduling(false);
+        FakeSlave a = new FakeSlave(engine, 0);
+        FakeSlave b = new FakeSlave(engine, 0);
+        MasterEngine.TaskDistributor job = job(4);
+        job.deal(List.of(a, b), tasks(4));
+        job.addSlave(a);
+        job.addSlave(b);
+
+        job.removeSlave(a);
+
+        assertFalse(job.isParticipant(a));
+        assertTrue(job.isParticipant(b));
+        assertEquals(List.of(0L, 2L, 1L, 3L), take(job, b, 4));
+    }
+
+    @Test
+    void retriesUntilAttemptsRunOut() {
+        FakeSlave a = new FakeSlave(engine, 1);
+        MasterEngine.TaskDistributor job = job(2);
+        job.deal(List.of(a), tasks(2));
+
+        MasterEngine.Task task = job.nextTask(a);
+        assertEquals(0, task.id());
+        for (int attempt = 1; attempt < 3; attempt++) {
+            assertTrue(job.retry(task));
+            // A retry goes ahead of the slave's own backlog
+            assertEquals(0, job.nextTask(a).id());
+        }
+        assertEquals(3, job.attempts(0));
+        assertFalse(job.retry(task));
+
+        assertTrue(job.finish(0, null));
+        assertEquals(1, counter("failed"));
+    }
+
+    @Test
+    void cancelledJobTakesNoRetries() {
+        FakeSlave a = new FakeSlave(engine, 1);
+        MasterEngine.TaskDistributor job = job(1);
+        job.deal(List.of(a), tasks(1));
+        MasterEngine.Task task = job.nextTask(a);
+
+        job.cancel();
+
+        assertTrue(job.isDone());
+        assertFalse(job.retry(task));
+        // Returns at once for a job that is done
+        job.run();
+    }
+
+    @Test
+    void finishesEachTaskOnce() {
+        FakeSlave a = new FakeSlave(engine, 1);
+        MasterEngine.TaskDistributor job = job(2);
+        job.deal(List.of(a), tasks(2));
+        take(job, a, 2);
+
+        assertTrue(job.finish(0, a));
+        assertFalse(job.finish(0, a));
+        assertFalse(job.isDone());
+        assertTrue(job.finish(1, null));
+        assertFalse(job.finish(1, a));
+
+        assertTrue(job.isDone());
+        assertEquals(1, counter("completed"));
+        assertEquals(1, counter("failed"));
+        job.run();
+    }
+
+    @Test
+    void duplicatesStragglers() {
+        FakeSlave a = new FakeSlave(engine, 1);
+        FakeSlave b = new FakeSlave(engine, 1);
+        // Enough quick tasks for the job to trust its p95, then two that hang on a
+        MasterEngine.TaskDistributor job = job(12);
+        job.deal(List.of(a), tasks(12));
+        take(job, a, 10);
+        for (long id = 0; id < 10; id++) {
+            assertTrue(job.finish(id, a));
+        }
+        assertEquals(List.of(10L, 11L), take(job, a, 2));
+        job.addSlave(b);
+        assertNull(job.nextTask(b), "nothing has run long enough to be duplicated");
+
+        // Longer than the shortest run worth duplicating
+        advance(1100);
+        MasterEngine.Task copy = job.nextTask(b);
+        assertEquals(10, copy.id());
+        assertEquals(1, job.attempts(10), "a duplicate is not an attempt");
+        // Looks for stragglers at most every 100 ms
+        assertNull(job.nextTask(b));
+        advance(150);
+        assertEquals(11, job.nextTask(b).id());
+
+        // The copy answers first, so the original is cancelled
+        assertTrue(job.finish(10, b));
+        assertEquals(List.of(10L), a.cancelled);
+
+        // The original fails; its copy carries on alone and needs no retry
+        assertTrue(job.dropCopy(11, a));
+        assertFalse(job.dropCopy(11, b));
+    }
+
+    @Test
+    void doesNotDuplicateWithoutEnoughSamples() {
+        FakeSlave a = new FakeSlave(engine, 1);
+        FakeSlave b = new FakeSlave(engine, 1);
+        MasterEngine.TaskDistributor job = job(3);
+        job.deal(List.of(a), tasks(3));
+        take(job, a, 3);
+        assertTrue(job.finish(0, a));
+        job.addSlave(b);
+
+        // Long overdue, but one finished task says nothing about the job's p95
+        advance(60_000);
+        assertNull(job.nextTask(b));
+    }
+
+    private MasterEngine.TaskDistributor job(int total) {
+        return engine.new TaskDistributor("job", "script-hash", new File(tmp, "script.py"), 1, total,
+                MasterEngine.Priority.NORMAL);
+    }
+
+    private List<MasterEngine.Task> tasks(int count) {
+        List<MasterEngine.Task> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tasks.add(new MasterEngine.Task(i, new File(tmp, "image-" + i + ".png")));
+        }
+        return tasks;
+    }
+
+    private static List<Long> take(MasterEngine.TaskDistributor job, FakeSlave slave, int count) {
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            MasterEngine.Task task = job.nextTask(slave);
+            assertNotNull(task, "expected " + count + " tasks, got " + ids);
+            ids.add(task.id());
+        }
+        return ids;
+    }
+
+    private long counter(String name) {
+        return engine.metrics().counter("job.job." + name).sum();
+    }
+
+    private void advance(long millis) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Slave with a fixed speed that records the tasks it is told to drop.
+     */
+    private static final class FakeSlave extends MasterEngine.SlaveHandler {
+        private final double speed;
+        final List<Long> cancelled = new ArrayList<>();
+        boolean saturated;
+
+        FakeSlave(MasterEngine engine, double speed) {
+            engine.super(new Socket(), new NullLink());
+            this.speed = speed;
+        }
+
+        @Override
+        public double speed() {
+            return speed;
+        }
+
+        @Override
+        public boolean isSaturated() {
+            return saturated;
+        }
+
+        @Override
+        void cancel(long taskId) {
+            cancelled.add(taskId);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventLogTest {
+    private static final String JOB_A = "3f2b9c1e-8d4a-4e6b-9a1f-0c7d2e5b8a41";
+    private static final String JOB_B = "7a0e4d2c-1b9f-4c3e-8d5a-6f2b0e9c1d73";
+
+    @Test
+    void foldsNumbersAndFileNames() {
+        assertEquals(EventLog.template("Processed img12.png in 340 ms"),
+                EventLog.template("Processed img7.png in 25 ms"));
+        // The whole word goes, punctuation and all
+        assertEquals("Retrying # (attempt # timeout", EventLog.template("Retrying img3.bmp (attempt 2): timeout"));
+        assertNotEquals(EventLog.template("Processed img1.png"), EventLog.template("Failed img1.png"));
+    }
+
+    @Test
+    void keepsIds() {
+        assertEquals("Job " + JOB_A + " finished #", EventLog.template("Job " + JOB_A + " finished 12/12"));
+        assertNotEquals(EventLog.template("Job " + JOB_A + " finished"),
+                EventLog.template("Job " + JOB_B + " finished"));
+        // Trailing punctuation still leaves an id intact
+        assertEquals("Slave " + JOB_A + ": lost", EventLog.template("Slave " + JOB_A + ": lost"));
+        String hash = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+        assertEquals("Missing " + hash, EventLog.template("Missing " + hash));
+    }
+
+    @Test
+    void countsAreNotMistakenForIds() {
+        assertEquals("Sent # bytes", EventLog.template("Sent 123456789 bytes"));
+        assertEquals("Took #", EventLog.template("Took 2024-01-01"));
+    }
+
+    @Test
+    void flushesEveryEventOnceAndKeepsJobsApart() {
+        List<EventLog.Entry> entries = new ArrayList<>();
+        EventLog log = new EventLog("test");
+        log.addView(flushed -> {
+            synchronized (entries) {
+                entries.addAll(flushed);
+            }
+        });
+        for (int i = 0; i < 50; i++) {
+            log.info("Job " + (i % 2 == 0 ? JOB_A : JOB_B) + " stored result " + i);
+        }
+        log.close();
+
+        int repeats = 0;
+        for (EventLog.Entry entry : entries) {
+            repeats += entry.repeats();
+            assertEquals(EventLog.Level.INFO, entry.level());
+            assertTrue(entry.message().contains(JOB_A) != entry.message().contains(JOB_B),
+                    "an entry stands for one job only: " + entry);
+        }
+        assertEquals(50, repeats);
+        assertTrue(entries.size() < 50, "repeated events should be folded");
+    }
+}
@@ -0,0 +1,339 @@
+package shared;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileTransferTest {
+    @TempDir
+    File tmp;
+    // Each socket round trip receives into a directory of its own
+    private int dirs = 0;
+
+    @Test
+    void rawRoundTrip() throws IOException {
+        File source = randomFile("input.bin", 3 * FileTransfer.CHUNK_SIZE + 17);
+
+        byte[] wire = send(out -> FileTransfer.sendFile(out, source, source.getName(), 0));
+        File received = FileTransfer.receiveFile(input(wire), dir("out"));
+
+        assertEquals("input.bin", received.getName());
+        assertSameContent(source, received);
+        assertNoPartFiles(received.getParentFile());
+    }
+
+    @Test
+    void deflatedRoundTrip() throws IOException {
+        File source = textFile("input.txt", 20000);
+
+        byte[] wire = send(out -> FileTransfer.sendFile(out, source, source.getName(), 6));
+        assertTrue(wire.length < source.length(), "compressible content should shrink on the wire");
+        File received = FileTransfer.receiveFile(input(wire), dir("out"));
+
+        assertSameContent(source, received);
+    }
+
+    @Test
+    void zeroLengthFile() throws IOException {
+        assertReceivesEmptyFile(0);
+    }
+
+    @Test
+    void deflatedZeroLengthFile() throws IOException {
+        assertReceivesEmptyFile(6);
+    }
+
+    @Test
+    void checksumMismatchKeepsEarlierFile() throws IOException {
+        assertChecksumMismatchKeepsEarlierFile(0);
+    }
+
+    @Test
+    void deflatedChecksumMismatchKeepsEarlierFile() throws IOException {
+        assertChecksumMismatchKeepsEarlierFile(6);
+    }
+
+    @Test
+    void truncatedTransferFails() throws IOException {
+        assertTruncationFails(0);
+    }
+
+    @Test
+    void truncatedDeflatedTransferFails() throws IOException {
+        assertTruncationFails(6);
+    }
+
+    @Test
+    void oversizedFrameIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF("input.bin");
+        out.writeLong(4);
+        out.writeByte(FileTransfer.RAW);
+        out.writeInt(8);
+        out.write(new byte[8]);
+        out.writeInt(0);
+        out.writeLong(0);
+
+        File dir = dir("out");
+        IOException e = assertThrows(IOException.class,
+                () -> FileTransfer.receiveFile(input(bytes.toByteArray()), dir));
+        assertTrue(e.getMessage().startsWith("Malformed chunk"), e.getMessage());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    void senderPathIsStripped() throws IOException {
+        File source = randomFile("input.bin", 10);
+
+        byte[] wire = send(out -> FileTransfer.sendFile(out, source, "../../escape.bin", 0));
+        File dir = dir("out");
+        File received = FileTransfer.receiveFile(input(wire), dir);
+
+        assertEquals(new File(dir, "escape.bin"), received);
+    }
+
+    @Test
+    void mappedSendWithoutChannelFallsBack() throws IOException {
+        File source = randomFile("input.bin", FileTransfer.CHUNK_SIZE + 1);
+
+        byte[] wire = send(out -> FileTransfer.sendMapped(out, null, source));
+        File received = FileTransfer.receiveFile(input(wire), dir("out"));
+
+        assertSameContent(source, received);
+    }
+
+    @Test
+    void receiverMatchesStreamFraming() throws IOException {
+        assertReceiverMatchesStreamFraming(0);
+    }
+
+    @Test
+    void receiverInflates() throws IOException {
+        assertReceiverMatchesStreamFraming(6);
+    }
+
+    @Test
+    void receiverDeletesPartOnMismatch() throws IOException {
+        File dir = dir("out");
+        FileTransfer.Receiver receiver = new FileTransfer.Receiver(dir, "input.bin", 3, FileTransfer.RAW);
+        receiver.write(ByteBuffer.wrap(new byte[] {1, 2, 3}));
+
+        assertThrows(IOException.class, () -> receiver.finish(0));
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    void receiverRejectsOversizedContent() throws IOException {
+        File dir = dir("out");
+        try (FileTransfer.Receiver receiver = new FileTransfer.Receiver(dir, "input.bin", 2, FileTransfer.RAW)) {
+            IOException e = assertThrows(IOException.class,
+                    () -> receiver.write(ByteBuffer.wrap(new byte[] {1, 2, 3})));
+            assertTrue(e.getMessage().startsWith("Malformed chunk"), e.getMessage());
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    void streamedSocketRoundTrip() throws Exception {
+        File source = largeFile();
+        assertSocketRoundTrip(source, false, (out, channel) -> FileTransfer.sendFile(out, channel, source));
+    }
+
+    @Test
+    void zeroCopySocketRoundTrip() throws Exception {
+        File source = largeFile();
+        assertSocketRoundTrip(source, true, (out, channel) -> FileTransfer.sendFile(out, channel, source));
+    }
+
+    @Test
+    void mappedSocketRoundTrip() throws Exception {
+        File source = largeFile();
+        assertSocketRoundTrip(source, false, (out, channel) -> FileTransfer.sendMapped(out, channel, source));
+        assertSocketRoundTrip(source, true, (out, channel) -> FileTransfer.sendMapped(out, channel, source));
+    }
+
+    @Test
+    void socketInputReportsReads() throws Exception {
+        File source = randomFile("input.bin", 4 * FileTransfer.CHUNK_SIZE);
+        int[] reads = new int[1];
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+                    FileTransfer.sendFile(out, channel, source);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+                FileTransfer.SocketInput in = new FileTransfer.SocketInput(client.socket(), 1024, () -> reads[0]++);
+                assertSameContent(source, FileTransfer.receiveFile(in, dir("out"), true));
+            }
+            sent.get(30, TimeUnit.SECONDS);
+        }
+        assertTrue(reads[0] > 1, "expected several reads, got " + reads[0]);
+    }
+
+    private void assertReceivesEmptyFile(int level) throws IOException {
+        File source = new File(tmp, "empty.bin");
+        assertTrue(source.createNewFile());
+
+        byte[] wire = send(out -> FileTransfer.sendFile(out, source, source.getName(), level));
+        File received = FileTransfer.receiveFile(input(wire), dir("out"));
+
+        assertTrue(received.exists());
+        assertEquals(0, received.length());
+    }
+
+    private void assertChecksumMismatchKeepsEarlierFile(int level) throws IOException {
+        File source = randomFile("input.bin", 1000);
+        File dir = dir("out");
+        File earlier = new File(dir, "input.bin");
+        Files.writeString(earlier.toPath(), "earlier");
+
+        byte[] wire = send(out -> FileTransfer.sendFile(out, source, source.getName(), level));
+        // The CRC is the last field of the transfer
+        wire[wire.length - 1] ^= 1;
+        IOException e = assertThrows(IOException.class, () -> FileTransfer.receiveFile(input(wire), dir));
+
+        assertTrue(e.getMessage().startsWith("Checksum mismatch"), e.getMessage());
+        assertEquals("earlier", Files.readString(earlier.toPath()));
+        assertNoPartFiles(dir);
+    }
+
+    private void assertTruncationFails(int level) throws IOException {
+        File source = randomFile("input.bin", 2 * FileTransfer.CHUNK_SIZE);
+        File dir = dir("out");
+
+        byte[] wire = send(out -> FileTransfer.sendFile(out, source, source.getName(), level));
+        for (int cut : new int[] {wire.length / 2, wire.length - 1}) {
+            byte[] truncated = Arrays.copyOf(wire, cut);
+            assertThrows(EOFException.class, () -> FileTransfer.receiveFile(input(truncated), dir));
+        }
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    private void assertReceiverMatchesStreamFraming(int level) throws IOException {
+        File source = textFile("input.txt", 5000);
+
+        DataInputStream in = input(send(out -> FileTransfer.sendFile(out, source, source.getName(), level)));
+        String name = in.readUTF();
+        long length = in.readLong();
+        byte codec = in.readByte();
+        try (FileTransfer.Receiver receiver = new FileTransfer.Receiver(dir("out"), name, length, codec)) {
+            int frame;
+            while ((frame = in.readInt()) > 0) {
+                byte[] content = new byte[frame];
+                in.readFully(content);
+                receiver.write(ByteBuffer.wrap(content));
+            }
+            assertSameContent(source, receiver.finish(in.readLong()));
+        }
+    }
+
+    /**
+     * Sends the file from one end of a loopback connection and receives it
+     * with a SocketInput at the other.
+     */
+    private void assertSocketRoundTrip(File source, boolean zeroCopy, ChannelSender sender) throws Exception {
+        File dir = dir("out-" + dirs++);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                try (SocketChannel channel = server.accept()) {
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(channel.socket().getOutputStream()));
+                    sender.send(out, channel);
+                    out.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            try (SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+                FileTransfer.SocketInput in = new FileTransfer.SocketInput(client.socket(), FileTransfer.CHUNK_SIZE);
+                assertSameContent(source, FileTransfer.receiveFile(in, dir, zeroCopy));
+            }
+            sent.get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * More than one zero-copy frame, with a remainder.
+     */
+    private File largeFile() throws IOException {
+        return randomFile("large.bin", FileTransfer.ZERO_COPY_FRAME + 12345);
+    }
+
+    private interface ChannelSender {
+        void send(DataOutputStream out, SocketChannel channel) throws IOException;
+    }
+
+    private interface Sender {
+        void send(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] send(Sender sender) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        sender.send(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream input(byte[] wire) {
+        return new DataInputStream(new ByteArrayInputStream(wire));
+    }
+
+    private File dir(String name) {
+        File dir = new File(tmp, name);
+        assertTrue(dir.mkdirs());
+        return dir;
+    }
+
+    private File randomFile(String name, int length) throws IOException {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        File file = new File(tmp, name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    private File textFile(String name, int lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("line ").append(i % 100).append('\n');
+        }
+        File file = new File(tmp, name);
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static void assertSameContent(File expected, File actual) throws IOException {
+        assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()),
+                actual + " differs from " + expected);
+    }
+
+    private static void assertNoPartFiles(File dir) {
+        for (File file : dir.listFiles()) {
+            assertFalse(file.getName().endsWith(".part"), "left behind " + file);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    @Test
+    void emptySnapshotIsZero() {
+        assertEquals(new LatencyHistogram.Snapshot(0, 0, 0, 0, 0, 0), new LatencyHistogram().snapshot());
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 10; micros++) {
+            histogram.record(micros);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10, snapshot.count());
+        assertEquals(0.005, snapshot.p50Millis(), 1e-9);
+        assertEquals(0.009, snapshot.p90Millis(), 1e-9);
+        assertEquals(0.010, snapshot.p99Millis(), 1e-9);
+        assertEquals(0.010, snapshot.maxMillis(), 1e-9);
+        assertEquals(0.0055, snapshot.meanMillis(), 1e-9);
+    }
+
+    @Test
+    void percentilesStayWithinTheBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // One value per millisecond from 1 ms to 1 s, shuffled by stride
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(((i * 379L) % 1000 + 1) * 1000);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count());
+        assertEquals(500.5, snapshot.meanMillis(), 1e-9);
+        assertEquals(1000, snapshot.maxMillis(), 1e-9);
+        assertEquals(500, snapshot.p50Millis(), 500 * 0.03);
+        assertEquals(900, snapshot.p90Millis(), 900 * 0.03);
+        assertEquals(990, snapshot.p99Millis(), 990 * 0.03);
+    }
+
+    @Test
+    void tailIsNotHiddenByTheBulk() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 980; i++) {
+            histogram.record(2_000);
+        }
+        for (int i = 0; i < 20; i++) {
+            histogram.record(5_000_000);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.p90Millis(), 2 * 0.03);
+        assertEquals(5000, snapshot.p99Millis(), 5000 * 0.03);
+    }
+
+    @Test
+    void bucketsCoverEveryValue() {
+        List<Long> values = new ArrayList<>();
+        for (long value = 0; value < 5000; value++) values.add(value);
+        for (long value = 5000; value > 0 && value < Long.MAX_VALUE >>> 2; value = value * 3 + 7) values.add(value);
+        values.add(Long.MAX_VALUE >>> 2);
+
+        for (long value : values) {
+            int index = LatencyHistogram.indexOf(value);
+            long low = LatencyHistogram.lowestOf(index);
+            long next = LatencyHistogram.lowestOf(index + 1);
+            assertTrue(low <= value && value < next, value + " outside [" + low + ", " + next + ")");
+            // Buckets are at most 1/32 of their values wide
+            assertTrue((next - low) * 32 <= Math.max(low, 32), "bucket of " + value + " too wide");
+        }
+    }
+
+    @Test
+    void clampsOutOfRangeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.count());
+        assertEquals(0, snapshot.p50Millis(), 1e-9);
+        assertEquals((Long.MAX_VALUE >>> 2) / 1000.0, snapshot.maxMillis(), 1);
+    }
+
+    @Test
+    void countsConcurrentRecords() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(40_000, histogram.count());
+        assertEquals(40_000, histogram.snapshot().count());
+        assertEquals(4 * (9_999L * 10_000 / 2), histogram.totalMicros());
+    }
+}
@@ -0,0 +1,116 @@
+package slave;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import shared.ContentHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentCacheTest {
+    @TempDir
+    File tmp;
+    private File cacheDir;
+    private final List<String> evicted = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        cacheDir = new File(tmp, "cache");
+    }
+
+    @Test
+    void restoresWhatWasPut() throws IOException {
+        ContentCache cache = cache(1000);
+        File source = file("input.txt", "hello");
+        String hash = ContentHash.sha256(source);
+
+        cache.put(hash, source);
+        File target = new File(tmp, "restored.txt");
+
+        assertTrue(cache.restore(hash, target));
+        assertEquals("hello", Files.readString(target.toPath()));
+        assertEquals(Set.of(hash), cache.hashes());
+        assertFalse(cache.restore("0".repeat(64), new File(tmp, "other.txt")));
+    }
+
+    @Test
+    void doesNotCacheMismatchedContent() throws IOException {
+        ContentCache cache = cache(1000);
+        File source = file("input.txt", "hello");
+
+        cache.put("0".repeat(64), source);
+
+        assertTrue(cache.hashes().isEmpty());
+        assertEquals(0, cacheDir.list().length, "no entry or part file is left behind");
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws IOException {
+        ContentCache cache = cache(10);
+        String a = put(cache, "a.txt", "aaaa");
+        String b = put(cache, "b.txt", "bbbb");
+        // Restoring a makes b the eldest
+        assertTrue(cache.restore(a, new File(tmp, "a-restored.txt")));
+
+        String c = put(cache, "c.txt", "cccc");
+
+        assertEquals(Set.of(a, c), cache.hashes());
+        assertEquals(List.of(b), evicted);
+        assertFalse(new File(cacheDir, b).exists());
+    }
+
+    @Test
+    void dropsCorruptEntryOnRestore() throws IOException {
+        ContentCache cache = cache(1000);
+        String hash = put(cache, "input.txt", "hello");
+        Files.writeString(new File(cacheDir, hash).toPath(), "jello");
+        File target = new File(tmp, "restored.txt");
+
+        assertFalse(cache.restore(hash, target));
+
+        assertFalse(target.exists(), "damaged content never reaches the target");
+        assertTrue(cache.hashes().isEmpty());
+        assertEquals(List.of(hash), evicted);
+        assertFalse(new File(cacheDir, hash).exists());
+    }
+
+    @Test
+    void rescanKeepsEntriesAndDropsPartFiles() throws IOException {
+        String hash = put(cache(1000), "input.txt", "hello");
+        File part = new File(cacheDir, "." + hash + ".123.part");
+        Files.writeString(part.toPath(), "hel");
+
+        ContentCache reopened = cache(1000);
+
+        assertEquals(Set.of(hash), reopened.hashes());
+        assertFalse(part.exists());
+        assertTrue(reopened.restore(hash, new File(tmp, "restored.txt")));
+    }
+
+    private ContentCache cache(long maxBytes) {
+        ContentCache cache = new ContentCache(cacheDir, maxBytes);
+        cache.setEvictionListener(evicted::add);
+        return cache;
+    }
+
+    private String put(ContentCache cache, String name, String content) throws IOException {
+        File source = file(name, content);
+        String hash = ContentHash.sha256(source);
+        cache.put(hash, source);
+        return hash;
+    }
+
+    private File file(String name, String content) throws IOException {
+        File file = new File(tmp, name);
+        Files.writeString(file.toPath(), content, StandardCharsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,118 @@
+package slave;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PythonWorkerPoolTest {
+    // Writes the worker's pid as the result, and misbehaves on request
+    private static final String SCRIPT = """
+            import os, sys, time
+            name = sys.argv[1]
+            if "crash" in name:
+                os._exit(3)
+            if "hang" in name:
+                time.sleep(60)
+            if "bad" in name:
+                raise ValueError("bad input")
+            with open("bw_" + name, "w") as f:
+                f.write(str(os.getpid()))
+            """;
+
+    @TempDir
+    File tmp;
+    private File script;
+    private PythonWorkerPool pool;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        script = new File(tmp, "script.py");
+        Files.writeString(script.toPath(), SCRIPT);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (pool != null) pool.close();
+    }
+
+    @Test
+    void keepsTheInterpreterBetweenInputs() throws Exception {
+        pool = pool(10, 10_000);
+
+        assertEquals("OK", pool.run(input("a.txt")));
+        assertEquals("OK", pool.run(input("b.txt")));
+
+        assertEquals(pid("a.txt"), pid("b.txt"));
+    }
+
+    @Test
+    void recyclesAfterMaxTasks() throws Exception {
+        pool = pool(2, 10_000);
+
+        for (String name : new String[] {"a.txt", "b.txt", "c.txt"}) {
+            assertEquals("OK", pool.run(input(name)));
+        }
+
+        assertEquals(pid("a.txt"), pid("b.txt"));
+        assertNotEquals(pid("b.txt"), pid("c.txt"), "a new worker after two inputs");
+    }
+
+    @Test
+    void reportsScriptErrorsAndCarriesOn() throws Exception {
+        pool = pool(10, 10_000);
+
+        assertEquals("OK", pool.run(input("a.txt")));
+        String status = pool.run(input("bad.txt"));
+        assertTrue(status.startsWith("ERR ValueError"), status);
+        assertEquals("OK", pool.run(input("b.txt")));
+
+        assertEquals(pid("a.txt"), pid("b.txt"), "an exception does not cost the worker");
+    }
+
+    @Test
+    void restartsAfterCrash() throws Exception {
+        pool = pool(10, 10_000);
+        assertEquals("OK", pool.run(input("a.txt")));
+
+        IOException e = assertThrows(IOException.class, () -> pool.run(input("crash.txt")));
+        assertTrue(e.getMessage().contains("exited"), e.getMessage());
+
+        assertEquals("OK", pool.run(input("b.txt")));
+        assertNotEquals(pid("a.txt"), pid("b.txt"));
+    }
+
+    @Test
+    void killsWorkerPastTheTaskTimeout() throws Exception {
+        pool = pool(10, 500);
+
+        long start = System.nanoTime();
+        IOException e = assertThrows(IOException.class, () -> pool.run(input("hang.txt")));
+        assertTrue(e.getMessage().contains("timed out"), e.getMessage());
+        assertTrue(System.nanoTime() - start < 30_000_000_000L, "gave up long before the script would finish");
+
+        assertEquals("OK", pool.run(input("a.txt")));
+    }
+
+    private PythonWorkerPool pool(int maxTasks, long timeoutMillis) throws IOException {
+        return new PythonWorkerPool(tmp, script, 1, maxTasks, timeoutMillis);
+    }
+
+    private File input(String name) throws IOException {
+        File dir = new File(tmp, "in");
+        dir.mkdirs();
+        File input = new File(dir, name);
+        Files.writeString(input.toPath(), name);
+        return input;
+    }
+
+    private String pid(String name) throws IOException {
+        return Files.readString(new File(tmp, "in/bw_" + name).toPath());
+    }
+}